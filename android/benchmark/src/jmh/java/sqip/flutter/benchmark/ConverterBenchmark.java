@@ -0,0 +1,88 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import sqip.Card;
+import sqip.CardDetails;
+import sqip.flutter.internal.converter.BaselineCardConverter;
+import sqip.flutter.internal.converter.BaselineCardDetailsConverter;
+import sqip.flutter.internal.converter.CardConverter;
+import sqip.flutter.internal.converter.CardDetailsConverter;
+
+/**
+ * Cost of turning a nonce into the payload sent to Dart, in the map and binary formats. The
+ * baseline benchmarks run the converters as they were before they were optimized, so
+ * gc.alloc.rate.norm shows the bytes saved per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConverterBenchmark {
+  private final CardConverter cardConverter = new CardConverter();
+  private final CardDetailsConverter cardDetailsConverter = new CardDetailsConverter(cardConverter);
+  private final BaselineCardConverter baselineCardConverter = new BaselineCardConverter();
+  private final BaselineCardDetailsConverter baselineCardDetailsConverter =
+      new BaselineCardDetailsConverter(baselineCardConverter);
+  private final CardDetails cardDetails = new CardDetails("cnon:card-nonce-ok-0123456789abcdef",
+      new Card("1111", 12, 2030, "94103", Card.Brand.VISA, Card.Type.CREDIT, Card.PrepaidType.NOT_PREPAID));
+
+  @Benchmark
+  public Map<String, Object> cardToMap() {
+    return cardConverter.toMapObject(cardDetails.getCard());
+  }
+
+  @Benchmark
+  public Map<String, Object> baselineCardToMap() {
+    return baselineCardConverter.toMapObject(cardDetails.getCard());
+  }
+
+  @Benchmark
+  public Map<String, Object> cardDetailsToMap() {
+    Map<String, Object> map = cardDetailsConverter.toMapObject(cardDetails);
+    map.put("requestId", 1);
+    return map;
+  }
+
+  @Benchmark
+  public Map<String, Object> baselineCardDetailsToMap() {
+    Map<String, Object> map = baselineCardDetailsConverter.toMapObject(cardDetails);
+    map.put("requestId", 1);
+    return map;
+  }
+
+  @Benchmark
+  public byte[] cardDetailsToByteArray() {
+    return cardDetailsConverter.toByteArray(cardDetails, 1);
+  }
+
+  @Benchmark
+  public byte[] baselineCardDetailsToByteArray() {
+    return baselineCardDetailsConverter.toByteArray(cardDetails, 1);
+  }
+
+  @Benchmark
+  public byte[] cardToSummaryByteArray() {
+    return cardConverter.toSummaryByteArray(cardDetails.getCard());
+  }
+}
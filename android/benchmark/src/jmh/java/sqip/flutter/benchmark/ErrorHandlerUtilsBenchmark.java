@@ -0,0 +1,66 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.benchmark;
+
+import android.content.Context;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sqip.flutter.internal.ErrorHandlerUtils;
+import sqip.flutter.internal.converter.BinaryCodec;
+
+/** Cost of building the error objects sent to Dart, fresh and from a shared payload. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ErrorHandlerUtilsBenchmark {
+  private ErrorHandlerUtils.ErrorPayload pluginError;
+
+  @Setup
+  public void setUp() {
+    ErrorHandlerUtils.initialize(new Context());
+    pluginError = ErrorHandlerUtils.definePluginError("fl_benchmark_error", "A plugin error.");
+  }
+
+  @Benchmark
+  public Map<String, Object> callbackErrorObject() {
+    return ErrorHandlerUtils.getCallbackErrorObject(ErrorHandlerUtils.USAGE_ERROR,
+        ErrorHandlerUtils.getPluginErrorMessage("fl_benchmark_error"), "fl_benchmark_error", "A plugin error.");
+  }
+
+  @Benchmark
+  public Map<String, Object> sharedPluginErrorObject() {
+    return pluginError.getCallbackErrorObject();
+  }
+
+  @Benchmark
+  public Map<String, Object> sdkErrorObject() {
+    return ErrorHandlerUtils.createSdkError("NO_NETWORK", "No network.", "google_pay_no_network", "Offline.")
+        .getCallbackErrorObject();
+  }
+
+  @Benchmark
+  public byte[] binaryErrorInfo() {
+    return BinaryCodec.encodeErrorInfo(1, pluginError.getCode(), pluginError.getMessage(),
+        pluginError.getDebugCode(), pluginError.getDebugMessage());
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.benchmark;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/** A method call result that only records that it was completed. */
+final class FakeResult implements MethodChannel.Result {
+  private volatile boolean completed;
+  volatile Object value;
+
+  @Override
+  public void success(Object result) {
+    value = result;
+    completed = true;
+  }
+
+  @Override
+  public void error(String errorCode, String errorMessage, Object errorDetails) {
+    value = errorCode;
+    completed = true;
+  }
+
+  @Override
+  public void notImplemented() {
+    completed = true;
+  }
+
+  /** Waits for a result completed on another thread, spinning as the hop is microseconds long. */
+  void await() {
+    while (!completed) {
+      Thread.yield();
+    }
+  }
+}
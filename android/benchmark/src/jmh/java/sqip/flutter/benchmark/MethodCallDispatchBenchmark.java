@@ -0,0 +1,91 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.benchmark;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import sqip.flutter.internal.MethodCallDispatcher;
+import sqip.flutter.internal.PerformanceMetrics;
+
+/**
+ * Cost of the plugin's method call dispatch, which is all SquareInAppPaymentsFlutterPlugin's
+ * onMethodCall does: handler lookup, argument checks, the hop to the background thread and the
+ * result hop back. The stub main looper runs posted results inline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MethodCallDispatchBenchmark {
+  private MethodCallDispatcher dispatcher;
+  private MethodCall setApplicationIdCall;
+  private MethodCall missingArgumentCall;
+  private MethodCall unknownMethodCall;
+
+  @Setup
+  public void setUp() {
+    dispatcher = new MethodCallDispatcher(new PerformanceMetrics());
+    dispatcher.register("setApplicationId", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        result.success(MethodCallDispatcher.requireString(call, "applicationId"));
+      }
+    });
+    Map<String, Object> arguments = new HashMap<>();
+    arguments.put("applicationId", "sandbox-sq0idb-benchmark");
+    setApplicationIdCall = new MethodCall("setApplicationId", arguments);
+    missingArgumentCall = new MethodCall("setApplicationId", new HashMap<String, Object>());
+    unknownMethodCall = new MethodCall("unknownMethod", null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    dispatcher.shutdown();
+  }
+
+  @Benchmark
+  public Object dispatchToBackgroundHandler() {
+    FakeResult result = new FakeResult();
+    dispatcher.onMethodCall(setApplicationIdCall, result);
+    result.await();
+    return result.value;
+  }
+
+  @Benchmark
+  public Object dispatchWithMissingArgument() {
+    FakeResult result = new FakeResult();
+    dispatcher.onMethodCall(missingArgumentCall, result);
+    result.await();
+    return result.value;
+  }
+
+  @Benchmark
+  public Object dispatchUnknownMethod() {
+    FakeResult result = new FakeResult();
+    dispatcher.onMethodCall(unknownMethodCall, result);
+    result.await();
+    return result.value;
+  }
+}
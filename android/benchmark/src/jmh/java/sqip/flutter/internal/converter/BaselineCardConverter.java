@@ -0,0 +1,144 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal.converter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import sqip.Card;
+
+/**
+ * CardConverter before its lookups moved to EnumMap and its map was presized, kept as it was so
+ * {@link sqip.flutter.benchmark.ConverterBenchmark} can measure against it. Don't optimize it.
+ */
+public final class BaselineCardConverter {
+  // Wire ordinals for BinaryCodec, in the same order as the Dart enum declarations in models.dart.
+  private static final List<String> BRAND_WIRE_ORDER = Arrays.asList("OTHER_BRAND", "VISA",
+      "MASTERCARD", "AMERICAN_EXPRESS", "DISCOVER", "DISCOVER_DINERS", "JCB", "CHINA_UNION_PAY");
+  private static final List<String> TYPE_WIRE_ORDER = Arrays.asList("DEBIT", "CREDIT", "UNKNOWN");
+  private static final List<String> PREPAID_TYPE_WIRE_ORDER = Arrays.asList("PREPAID", "NOT_PREPAID", "UNKNOWN");
+
+  private static final Map<Card.Brand, String> brandStringMap;
+  private static final Map<Card.Type, String> typeStringMap;
+  private static final Map<Card.PrepaidType, String> prepaidTypeStringMap;
+  private static final Map<Card.Brand, Integer> brandOrdinalMap;
+  private static final Map<Card.Type, Integer> typeOrdinalMap;
+  private static final Map<Card.PrepaidType, Integer> prepaidTypeOrdinalMap;
+
+  static {
+    brandStringMap = new LinkedHashMap<>();
+    for (Card.Brand brand : Card.Brand.values()) {
+      switch(brand) {
+        case OTHER_BRAND:
+          brandStringMap.put(brand, "OTHER_BRAND");
+          break;
+        case VISA:
+          brandStringMap.put(brand, "VISA");
+          break;
+        case MASTERCARD:
+          brandStringMap.put(brand, "MASTERCARD");
+          break;
+        case AMERICAN_EXPRESS:
+          brandStringMap.put(brand, "AMERICAN_EXPRESS");
+          break;
+        case DISCOVER:
+          brandStringMap.put(brand, "DISCOVER");
+          break;
+        case DISCOVER_DINERS:
+          brandStringMap.put(brand, "DISCOVER_DINERS");
+          break;
+        case JCB:
+          brandStringMap.put(brand, "JCB");
+          break;
+        case CHINA_UNION_PAY:
+          brandStringMap.put(brand, "CHINA_UNION_PAY");
+          break;
+        default:
+          throw new RuntimeException("Unexpected brand value: " + brand.name());
+      }
+    }
+    typeStringMap = new LinkedHashMap<>();
+    for (Card.Type type : Card.Type.values()) {
+      switch(type) {
+        case DEBIT:
+          typeStringMap.put(type, "DEBIT");
+          break;
+        case CREDIT:
+          typeStringMap.put(type, "CREDIT");
+          break;
+        case UNKNOWN:
+          typeStringMap.put(type, "UNKNOWN");
+          break;
+        default:
+          throw new RuntimeException("Unexpected card type value: " + type.name());
+      }
+    }
+    prepaidTypeStringMap = new LinkedHashMap<>();
+    for (Card.PrepaidType prepaidType : Card.PrepaidType.values()) {
+      switch(prepaidType) {
+        case PREPAID:
+          prepaidTypeStringMap.put(prepaidType, "PREPAID");
+          break;
+        case NOT_PREPAID:
+          prepaidTypeStringMap.put(prepaidType, "NOT_PREPAID");
+          break;
+        case UNKNOWN:
+          prepaidTypeStringMap.put(prepaidType, "UNKNOWN");
+          break;
+        default:
+          throw new RuntimeException("Unexpected card prepaid type value: " + prepaidType.name());
+      }
+    }
+    brandOrdinalMap = new LinkedHashMap<>();
+    for (Map.Entry<Card.Brand, String> entry : brandStringMap.entrySet()) {
+      brandOrdinalMap.put(entry.getKey(), BRAND_WIRE_ORDER.indexOf(entry.getValue()));
+    }
+    typeOrdinalMap = new LinkedHashMap<>();
+    for (Map.Entry<Card.Type, String> entry : typeStringMap.entrySet()) {
+      typeOrdinalMap.put(entry.getKey(), TYPE_WIRE_ORDER.indexOf(entry.getValue()));
+    }
+    prepaidTypeOrdinalMap = new LinkedHashMap<>();
+    for (Map.Entry<Card.PrepaidType, String> entry : prepaidTypeStringMap.entrySet()) {
+      prepaidTypeOrdinalMap.put(entry.getKey(), PREPAID_TYPE_WIRE_ORDER.indexOf(entry.getValue()));
+    }
+  }
+
+  public Map<String, Object> toMapObject(Card card) {
+    Map<String, Object> mapToReturn = new LinkedHashMap<>();
+    mapToReturn.put("brand", brandStringMap.get(card.getBrand()));
+    mapToReturn.put("lastFourDigits", card.getLastFourDigits());
+    mapToReturn.put("expirationMonth", card.getExpirationMonth());
+    mapToReturn.put("expirationYear", card.getExpirationYear());
+    mapToReturn.put("postalCode", card.getPostalCode());
+    mapToReturn.put("type", typeStringMap.get(card.getType()));
+    mapToReturn.put("prepaidType", prepaidTypeStringMap.get(card.getPrepaidType()));
+
+    return mapToReturn;
+  }
+
+  void writeTo(Card card, DataOutputStream output) throws IOException {
+    output.writeByte(brandOrdinalMap.get(card.getBrand()));
+    BinaryCodec.writeString(output, card.getLastFourDigits());
+    output.writeByte(card.getExpirationMonth());
+    output.writeShort(card.getExpirationYear());
+    BinaryCodec.writeString(output, card.getPostalCode());
+    output.writeByte(typeOrdinalMap.get(card.getType()));
+    output.writeByte(prepaidTypeOrdinalMap.get(card.getPrepaidType()));
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import sqip.CardDetails;
+
+/**
+ * CardDetailsConverter before it presized its map and reused its encoding buffer, kept as it was so
+ * {@link sqip.flutter.benchmark.ConverterBenchmark} can measure against it. Don't optimize it.
+ */
+public final class BaselineCardDetailsConverter {
+
+  private final BaselineCardConverter cardConverter;
+
+  public BaselineCardDetailsConverter(BaselineCardConverter cardConverter) {
+    this.cardConverter = cardConverter;
+  }
+
+  public Map<String, Object> toMapObject(CardDetails cardDetails) {
+    Map<String, Object> mapToReturn = new LinkedHashMap<>();
+    mapToReturn.put("nonce", cardDetails.getNonce());
+    mapToReturn.put("card", cardConverter.toMapObject(cardDetails.getCard()));
+
+    return mapToReturn;
+  }
+
+  public byte[] toByteArray(CardDetails cardDetails, int requestId) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeByte(BinaryCodec.TAG_CARD_DETAILS);
+      output.writeInt(requestId);
+      BinaryCodec.writeString(output, cardDetails.getNonce());
+      cardConverter.writeTo(cardDetails.getCard(), output);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+}
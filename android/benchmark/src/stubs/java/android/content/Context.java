@@ -0,0 +1,26 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package android.content;
+
+/** Stub: resources resolve to their English values. */
+public class Context {
+  public String getString(int resId) {
+    if (resId == sqip.flutter.R.string.sqip_flutter_developer_error_message) {
+      return "Something went wrong. Please contact the developer of this application and provide them with this error code: %1$s";
+    }
+    return "";
+  }
+}
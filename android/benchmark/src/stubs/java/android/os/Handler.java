@@ -0,0 +1,35 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package android.os;
+
+/** Stub: posted work runs inline on the posting thread, so a post costs only the call. */
+public class Handler {
+  public Handler(Looper looper) {
+  }
+
+  public final boolean post(Runnable runnable) {
+    runnable.run();
+    return true;
+  }
+
+  public final boolean postDelayed(Runnable runnable, long delayMillis) {
+    runnable.run();
+    return true;
+  }
+
+  public final void removeCallbacks(Runnable runnable) {
+  }
+}
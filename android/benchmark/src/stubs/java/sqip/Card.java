@@ -0,0 +1,78 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip;
+
+/** Stub of the SDK card, with the same constructor and accessors. */
+public final class Card {
+  public enum Brand {
+    OTHER_BRAND, VISA, MASTERCARD, AMERICAN_EXPRESS, DISCOVER, DISCOVER_DINERS, JCB, CHINA_UNION_PAY
+  }
+
+  public enum Type {
+    DEBIT, CREDIT, UNKNOWN
+  }
+
+  public enum PrepaidType {
+    PREPAID, NOT_PREPAID, UNKNOWN
+  }
+
+  private final String lastFourDigits;
+  private final int expirationMonth;
+  private final int expirationYear;
+  private final String postalCode;
+  private final Brand brand;
+  private final Type type;
+  private final PrepaidType prepaidType;
+
+  public Card(String lastFourDigits, int expirationMonth, int expirationYear, String postalCode, Brand brand,
+      Type type, PrepaidType prepaidType) {
+    this.lastFourDigits = lastFourDigits;
+    this.expirationMonth = expirationMonth;
+    this.expirationYear = expirationYear;
+    this.postalCode = postalCode;
+    this.brand = brand;
+    this.type = type;
+    this.prepaidType = prepaidType;
+  }
+
+  public String getLastFourDigits() {
+    return lastFourDigits;
+  }
+
+  public int getExpirationMonth() {
+    return expirationMonth;
+  }
+
+  public int getExpirationYear() {
+    return expirationYear;
+  }
+
+  public String getPostalCode() {
+    return postalCode;
+  }
+
+  public Brand getBrand() {
+    return brand;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public PrepaidType getPrepaidType() {
+    return prepaidType;
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter;
+
+/** Stub of the plugin's generated resource ids. */
+public final class R {
+  private R() {
+  }
+
+  public static final class string {
+    public static final int sqip_flutter_developer_error_message = 1;
+    public static final int sqip_flutter_card_nonce_response_timeout_message = 2;
+
+    private string() {
+    }
+  }
+}
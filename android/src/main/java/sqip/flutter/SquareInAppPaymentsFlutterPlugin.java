@@ -15,60 +15,264 @@
 */
 package sqip.flutter;
 
+import android.app.Activity;
+import android.content.Context;
+import android.os.Process;
 import sqip.InAppPaymentsSdk;
+import sqip.flutter.internal.ActivityProvider;
+import sqip.flutter.internal.ActivityResultRouter;
 import sqip.flutter.internal.CardEntryModule;
+import sqip.flutter.internal.ErrorHandlerUtils;
+import sqip.flutter.internal.EventDispatcher;
 import sqip.flutter.internal.GooglePayModule;
+import sqip.flutter.internal.LazyModule;
+import sqip.flutter.internal.MethodCallDispatcher;
+import sqip.flutter.internal.NonceJournal;
+import sqip.flutter.internal.PaymentEventStream;
+import sqip.flutter.internal.PerformanceMetrics;
+import sqip.flutter.internal.RecentCardCache;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.embedding.engine.plugins.activity.ActivityAware;
+import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class SquareInAppPaymentsFlutterPlugin implements MethodCallHandler {
-  private static MethodChannel channel;
+public class SquareInAppPaymentsFlutterPlugin implements FlutterPlugin, ActivityAware, MethodCallHandler {
+  private static final String CHANNEL_NAME = "square_in_app_payments";
 
-  private final CardEntryModule cardEntryModule;
-  private final GooglePayModule googlePayModule;
+  private final PerformanceMetrics performanceMetrics;
+  private final ActivityResultRouter activityResultRouter;
+  private final AtomicBoolean prewarmStarted;
+  private MethodChannel channel;
+  private EventChannel paymentEventChannel;
+  private MethodCallDispatcher dispatcher;
+  private LazyModule<CardEntryModule> cardEntryModule;
+  private LazyModule<GooglePayModule> googlePayModule;
+  private LazyModule<NonceJournal> nonceJournal;
+  private LazyModule<RecentCardCache> recentCardCache;
+  private ActivityPluginBinding activityBinding;
+  private volatile Activity currentActivity;
+  private volatile boolean useBinaryCodec;
 
-  /** Plugin registration. */
+  /** Plugin registration for apps still on the v1 embedding. */
   public static void registerWith(Registrar registrar) {
-    channel = new MethodChannel(registrar.messenger(), "square_in_app_payments");
-    channel.setMethodCallHandler(new SquareInAppPaymentsFlutterPlugin(registrar));
+    SquareInAppPaymentsFlutterPlugin plugin = new SquareInAppPaymentsFlutterPlugin();
+    plugin.currentActivity = registrar.activity();
+    registrar.addActivityResultListener(plugin.activityResultRouter);
+    plugin.attach(registrar.messenger(), registrar.context());
   }
 
-  private SquareInAppPaymentsFlutterPlugin(Registrar registrar) {
-    cardEntryModule = new CardEntryModule(registrar, channel);
-    googlePayModule = new GooglePayModule(registrar, channel);
+  /** Sets a listener that receives every latency sample recorded by the plugin, or null to remove it. */
+  public static void setPerformanceListener(PerformanceListener performanceListener) {
+    PerformanceMetrics.setListener(performanceListener);
+  }
+
+  public SquareInAppPaymentsFlutterPlugin() {
+    performanceMetrics = new PerformanceMetrics();
+    activityResultRouter = new ActivityResultRouter();
+    prewarmStarted = new AtomicBoolean();
+  }
+
+  @Override
+  public void onAttachedToEngine(FlutterPluginBinding binding) {
+    attach(binding.getBinaryMessenger(), binding.getApplicationContext());
+  }
+
+  @Override
+  public void onDetachedFromEngine(FlutterPluginBinding binding) {
+    channel.setMethodCallHandler(null);
+    channel = null;
+    paymentEventChannel.setStreamHandler(null);
+    paymentEventChannel = null;
+    dispatcher.shutdown();
+    dispatcher = null;
+    CardEntryModule releasedCardEntryModule = cardEntryModule.release();
+    if (releasedCardEntryModule != null) {
+      releasedCardEntryModule.release();
+    }
+    GooglePayModule releasedGooglePayModule = googlePayModule.release();
+    if (releasedGooglePayModule != null) {
+      releasedGooglePayModule.release();
+    }
+    NonceJournal releasedNonceJournal = nonceJournal.release();
+    if (releasedNonceJournal != null) {
+      releasedNonceJournal.release();
+    }
+    nonceJournal = null;
+    RecentCardCache releasedRecentCardCache = recentCardCache.release();
+    if (releasedRecentCardCache != null) {
+      releasedRecentCardCache.release();
+    }
+    recentCardCache = null;
+  }
+
+  @Override
+  public void onAttachedToActivity(ActivityPluginBinding binding) {
+    activityBinding = binding;
+    currentActivity = binding.getActivity();
+    binding.addActivityResultListener(activityResultRouter);
+  }
+
+  @Override
+  public void onDetachedFromActivityForConfigChanges() {
+    onDetachedFromActivity();
+  }
+
+  @Override
+  public void onReattachedToActivityForConfigChanges(ActivityPluginBinding binding) {
+    onAttachedToActivity(binding);
+  }
+
+  @Override
+  public void onDetachedFromActivity() {
+    if (activityBinding != null) {
+      activityBinding.removeActivityResultListener(activityResultRouter);
+      activityBinding = null;
+    }
+    currentActivity = null;
   }
 
   @Override
   public void onMethodCall(MethodCall call, final Result result) {
-    if (call.method.equals("setApplicationId")) {
-      String applicationId = call.argument("applicationId");
-      InAppPaymentsSdk.INSTANCE.setSquareApplicationId(applicationId);
-      result.success(null);
-    } else if (call.method.equals("startCardEntryFlow")) {
-      boolean collectPostalCode = call.argument("collectPostalCode");
-      cardEntryModule.startCardEntryFlow(result, collectPostalCode);
-    } else if (call.method.equals("completeCardEntry")) {
-      cardEntryModule.completeCardEntry(result);
-    } else if (call.method.equals("showCardNonceProcessingError")) {
-      String errorMessage = call.argument("errorMessage");
-      cardEntryModule.showCardNonceProcessingError(result, errorMessage);
-    } else if (call.method.equals("initializeGooglePay")) {
-      String squareLocationId = call.argument("squareLocationId");
-      int environment = call.argument("environment");
-      googlePayModule.initializeGooglePay(squareLocationId, environment);
-      result.success(null);
-    } else if (call.method.equals("canUseGooglePay")) {
-      googlePayModule.canUseGooglePay(result);
-    } else if (call.method.equals("requestGooglePayNonce")) {
-      String price = call.argument("price");
-      String currencyCode = call.argument("currencyCode");
-      int priceStatus = call.argument("priceStatus");
-      googlePayModule.requestGooglePayNonce(result, price, currencyCode, priceStatus);
-    } else {
-      result.notImplemented();
+    dispatcher.onMethodCall(call, result);
+  }
+
+  private void prewarm(final Context applicationContext) {
+    if (!prewarmStarted.compareAndSet(false, true)) {
+      return;
     }
+    // A one-off, low priority thread, so prewarming never delays method calls or frames.
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        CardEntryModule.prewarm(applicationContext);
+      }
+    }, "sqip-flutter-prewarm").start();
+  }
+
+  private void attach(BinaryMessenger messenger, final Context context) {
+    final Context applicationContext = context.getApplicationContext();
+    ErrorHandlerUtils.initialize(applicationContext);
+    final MethodChannel channel = new MethodChannel(messenger, CHANNEL_NAME);
+    final EventDispatcher eventDispatcher = new EventDispatcher(channel);
+    final PaymentEventStream paymentEventStream = new PaymentEventStream(eventDispatcher);
+    EventChannel paymentEventChannel = new EventChannel(messenger, PaymentEventStream.CHANNEL_NAME);
+    paymentEventChannel.setStreamHandler(paymentEventStream);
+    // Like the modules, the shared stores are only acquired once something needs them.
+    final LazyModule<NonceJournal> nonceJournal = new LazyModule<NonceJournal>() {
+      @Override protected NonceJournal create() {
+        return NonceJournal.acquire(applicationContext);
+      }
+    };
+    final LazyModule<RecentCardCache> recentCardCache = new LazyModule<RecentCardCache>() {
+      @Override protected RecentCardCache create() {
+        return RecentCardCache.acquire(applicationContext);
+      }
+    };
+    final ActivityProvider activityProvider = new ActivityProvider() {
+      @Override public Activity getActivity() {
+        return currentActivity;
+      }
+    };
+    // Modules are created on their first method call, so apps that never take a payment don't pay for them.
+    cardEntryModule = new LazyModule<CardEntryModule>() {
+      @Override protected CardEntryModule create() {
+        CardEntryModule module = new CardEntryModule(
+            applicationContext, activityProvider, eventDispatcher, paymentEventStream, nonceJournal.get(),
+            recentCardCache.get(), activityResultRouter, performanceMetrics);
+        module.setUseBinaryCodec(useBinaryCodec);
+        return module;
+      }
+    };
+    googlePayModule = new LazyModule<GooglePayModule>() {
+      @Override protected GooglePayModule create() {
+        GooglePayModule module = new GooglePayModule(
+            applicationContext, activityProvider, eventDispatcher, paymentEventStream, nonceJournal.get(),
+            recentCardCache.get(), activityResultRouter, performanceMetrics);
+        module.setUseBinaryCodec(useBinaryCodec);
+        return module;
+      }
+    };
+
+    dispatcher = new MethodCallDispatcher(performanceMetrics);
+    dispatcher.register("setApplicationId", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        String applicationId = MethodCallDispatcher.requireString(call, "applicationId");
+        InAppPaymentsSdk.INSTANCE.setSquareApplicationId(applicationId);
+        if (MethodCallDispatcher.optionalBoolean(call, "prewarm")) {
+          prewarm(applicationContext);
+        }
+        result.success(null);
+      }
+    });
+    dispatcher.register("setBinaryCodecEnabled", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        useBinaryCodec = MethodCallDispatcher.requireBoolean(call, "enabled");
+        CardEntryModule createdCardEntryModule = cardEntryModule.peek();
+        if (createdCardEntryModule != null) {
+          createdCardEntryModule.setUseBinaryCodec(useBinaryCodec);
+        }
+        GooglePayModule createdGooglePayModule = googlePayModule.peek();
+        if (createdGooglePayModule != null) {
+          createdGooglePayModule.setUseBinaryCodec(useBinaryCodec);
+        }
+        result.success(null);
+      }
+    });
+    dispatcher.register("getPerformanceMetrics", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        boolean reset = MethodCallDispatcher.optionalBoolean(call, "reset");
+        result.success(performanceMetrics.toMapObject(reset));
+      }
+    });
+    dispatcher.register("setNonceJournalEnabled", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        nonceJournal.get().setEnabled(MethodCallDispatcher.requireBoolean(call, "enabled"));
+        result.success(null);
+      }
+    });
+    dispatcher.register("recoverPendingNonces", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        nonceJournal.get().recover(result);
+      }
+    });
+    dispatcher.register("acknowledgeNonce", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        nonceJournal.get().acknowledge(MethodCallDispatcher.requireString(call, "nonce"));
+        result.success(null);
+      }
+    });
+    dispatcher.register("getRecentCards", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        recentCardCache.get().getRecentCards(result);
+      }
+    });
+    dispatcher.register("setRecentCardPersistenceEnabled", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        recentCardCache.get().setPersistenceEnabled(MethodCallDispatcher.requireBoolean(call, "enabled"));
+        result.success(null);
+      }
+    });
+    dispatcher.register("clearRecentCards", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, Result result) {
+        recentCardCache.get().clear();
+        result.success(null);
+      }
+    });
+    CardEntryModule.registerMethods(dispatcher, cardEntryModule);
+    GooglePayModule.registerMethods(dispatcher, googlePayModule);
+
+    this.nonceJournal = nonceJournal;
+    this.recentCardCache = recentCardCache;
+    this.paymentEventChannel = paymentEventChannel;
+    this.channel = channel;
+    channel.setMethodCallHandler(this);
   }
 }
@@ -0,0 +1,24 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+
+/** Gives modules the activity the plugin is currently attached to, without holding on to it. */
+public interface ActivityProvider {
+  /** Returns the attached activity, or null while the plugin is detached from any activity. */
+  Activity getActivity();
+}
@@ -0,0 +1,52 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Intent;
+import io.flutter.plugin.common.PluginRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The plugin's only activity result listener. Results are handed to the listener registered
+ * for their request code and claimed, anything else is left for other plugins.
+ */
+public final class ActivityResultRouter implements PluginRegistry.ActivityResultListener {
+
+  private final Map<Integer, PluginRegistry.ActivityResultListener> listeners;
+
+  public ActivityResultRouter() {
+    listeners = new ConcurrentHashMap<>();
+  }
+
+  public void register(int requestCode, PluginRegistry.ActivityResultListener listener) {
+    listeners.put(requestCode, listener);
+  }
+
+  public void unregister(int requestCode) {
+    listeners.remove(requestCode);
+  }
+
+  @Override
+  public boolean onActivityResult(int requestCode, int resultCode, Intent data) {
+    PluginRegistry.ActivityResultListener listener = listeners.get(requestCode);
+    if (listener == null) {
+      return false;
+    }
+    listener.onActivityResult(requestCode, resultCode, data);
+    return true;
+  }
+}
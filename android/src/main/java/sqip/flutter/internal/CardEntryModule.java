@@ -16,13 +16,15 @@ limitations under the License.
 package sqip.flutter.internal;
 
 import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.Bundle;
 import android.view.animation.Animation;
 import sqip.Callback;
+import sqip.Card;
 import sqip.CardDetails;
 import sqip.CardEntry;
 import sqip.CardEntryActivityCommand;
@@ -31,99 +33,385 @@ import sqip.CardNonceBackgroundHandler;
 import sqip.flutter.R;
 import sqip.flutter.internal.converter.CardConverter;
 import sqip.flutter.internal.converter.CardDetailsConverter;
+import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static android.view.animation.AnimationUtils.loadAnimation;
 
 final public class CardEntryModule {
 
-  private final Activity currentActivity;
+  private static final long DEFAULT_CARD_NONCE_RESPONSE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+  // Upper bound on how long lifecycle close detection waits for the card entry activity to stop.
+  private static final long MAX_CARD_ENTRY_CLOSE_WAIT_MS = 1000;
+
+  // Android only sqip.flutter card entry errors
+  private static final String FL_CARD_ENTRY_ALREADY_IN_PROGRESS = "fl_card_entry_already_in_progress";
+  private static final String FL_MESSAGE_CARD_ENTRY_ALREADY_IN_PROGRESS = "Card entry is already in progress, please wait for it to close before starting it again.";
+  private static final ErrorHandlerUtils.ErrorPayload CARD_ENTRY_ALREADY_IN_PROGRESS =
+      ErrorHandlerUtils.definePluginError(FL_CARD_ENTRY_ALREADY_IN_PROGRESS, FL_MESSAGE_CARD_ENTRY_ALREADY_IN_PROGRESS);
+  private static final String FL_PLUGIN_DETACHED = "fl_plugin_detached";
+  private static final String FL_MESSAGE_PLUGIN_DETACHED = "The plugin was detached from the Flutter engine before card entry finished.";
+  private static final ErrorHandlerUtils.ErrorPayload PLUGIN_DETACHED =
+      ErrorHandlerUtils.definePluginError(FL_PLUGIN_DETACHED, FL_MESSAGE_PLUGIN_DETACHED);
+  private static final String FL_CARD_NONCE_REQUEST_EXPIRED = "fl_card_nonce_request_expired";
+  private static final String FL_MESSAGE_CARD_NONCE_REQUEST_EXPIRED = "The card nonce request is unknown or was already answered, e.g. by the response timeout.";
+  private static final ErrorHandlerUtils.ErrorPayload CARD_NONCE_REQUEST_EXPIRED =
+      ErrorHandlerUtils.definePluginError(FL_CARD_NONCE_REQUEST_EXPIRED, FL_MESSAGE_CARD_NONCE_REQUEST_EXPIRED);
+
+  // Installed in place of a released module's handler, so the SDK doesn't keep the module and its engine alive.
+  private static final CardNonceBackgroundHandler DETACHED_NONCE_HANDLER = new CardNonceBackgroundHandler() {
+    @Override
+    public CardEntryActivityCommand handleEnteredCardInBackground(CardDetails cardDetails) {
+      return new CardEntryActivityCommand.ShowError(PLUGIN_DETACHED.getMessage());
+    }
+  };
+  // The SDK keeps a single nonce handler per process. Guarded by CardEntryModule.class.
+  private static CardNonceBackgroundHandler installedNonceHandler;
+  // Read from the app's resources once per process; a racing second read gets the same value.
+  private static volatile long closeExitAnimationDurationMs = -1;
+
+  private final Context applicationContext;
+  private final ActivityProvider activityProvider;
+  private final ActivityResultRouter activityResultRouter;
+  private final PaymentEventStream paymentEventStream;
+  private final NonceJournal nonceJournal;
+  private final RecentCardCache recentCardCache;
+  private final PerformanceMetrics performanceMetrics;
   private final CardDetailsConverter cardDetailsConverter;
-  private final AtomicReference<CardEntryActivityCommand> reference;
-  private final Handler handler;
-  private volatile CountDownLatch countDownLatch;
+  private final Map<Integer, PendingCardEntryCommand> pendingCommands;
+  private final AtomicInteger requestIdGenerator;
+  private final CardEntrySdk cardEntrySdk;
+  private final MainThread mainThread;
+  // The startCardEntryFlow result kept open until the first nonce or a cancel, in awaitResult mode.
+  private final AtomicReference<MethodChannel.Result> pendingStartResult;
+  private final PaymentFlowState flowState;
+  private final CardNonceBackgroundHandler nonceHandler;
+  private volatile long cardNonceResponseTimeoutMs;
+  private volatile boolean released;
+  private volatile boolean useBinaryCodec;
+  // Main thread only.
+  private CardEntryCloseTracker closeTracker;
+
+  public CardEntryModule(Context applicationContext, ActivityProvider activityProvider, EventDispatcher eventDispatcher,
+      PaymentEventStream paymentEventStream, NonceJournal nonceJournal, RecentCardCache recentCardCache,
+      ActivityResultRouter activityResultRouter, PerformanceMetrics performanceMetrics) {
+    this(applicationContext, activityProvider, eventDispatcher, paymentEventStream, nonceJournal, recentCardCache,
+        activityResultRouter, performanceMetrics, CardEntrySdk.DEFAULT, LooperMainThread.INSTANCE);
+  }
 
-  public CardEntryModule(PluginRegistry.Registrar registrar, final MethodChannel channel) {
-    currentActivity = registrar.activity();
+  CardEntryModule(Context applicationContext, ActivityProvider activityProvider, final EventDispatcher eventDispatcher,
+      PaymentEventStream paymentEventStream, NonceJournal nonceJournal, RecentCardCache recentCardCache,
+      ActivityResultRouter activityResultRouter, PerformanceMetrics performanceMetrics, CardEntrySdk cardEntrySdk,
+      MainThread mainThread) {
+    this.paymentEventStream = paymentEventStream;
+    this.nonceJournal = nonceJournal;
+    this.recentCardCache = recentCardCache;
+    this.applicationContext = applicationContext;
+    this.activityProvider = activityProvider;
+    this.activityResultRouter = activityResultRouter;
+    this.performanceMetrics = performanceMetrics;
     cardDetailsConverter = new CardDetailsConverter(new CardConverter());
-    reference = new AtomicReference<>();
-    handler = new Handler(Looper.getMainLooper());
+    pendingCommands = new ConcurrentHashMap<>();
+    requestIdGenerator = new AtomicInteger();
+    this.cardEntrySdk = cardEntrySdk;
+    this.mainThread = mainThread;
+    pendingStartResult = new AtomicReference<>();
+    flowState = new PaymentFlowState();
+    cardNonceResponseTimeoutMs = DEFAULT_CARD_NONCE_RESPONSE_TIMEOUT_MS;
 
-    registrar.addActivityResultListener(new PluginRegistry.ActivityResultListener() {
+    activityResultRouter.register(CardEntry.DEFAULT_CARD_ENTRY_REQUEST_CODE, new PluginRegistry.ActivityResultListener() {
       @Override public boolean onActivityResult(int requestCode, int resultCode, Intent data) {
-        CardEntry.handleActivityResult(data, new Callback<CardEntryActivityResult>() {
+        cardEntrySdk.handleActivityResult(data, new Callback<CardEntryActivityResult>() {
           @Override public void onResult(final CardEntryActivityResult cardEntryActivityResult) {
+            flowState.moveTo(PaymentFlowState.State.CLOSING);
+            final long closeStartNanos = PerformanceMetrics.startTimer();
             // flutter UI doesn't know the context of fade_out animation
             // so that the next action from flutter can be triggered too soon before
             // card entry activity is closed completely.
-            // So this is a workaround to delay the callback until animation finished.
-            long delayDurationMs = readCardEntryCloseExitAnimationDurationMs();
-            handler.postDelayed(new Runnable() {
+            // So this is a workaround to delay the callback until animation finished,
+            // or until the card entry activity has stopped when close detection is enabled.
+            Runnable delivery = new Runnable() {
               @Override
               public void run() {
+                performanceMetrics.record(PerformanceMetrics.PHASE_CARD_ENTRY_CLOSE, closeStartNanos);
+                // Idle before Dart hears about it, so it can start card entry again right away.
+                flowState.moveTo(PaymentFlowState.State.IDLE);
                 if (cardEntryActivityResult.isCanceled()) {
-                  channel.invokeMethod("cardEntryCancel", null);
+                  MethodChannel.Result startResult = pendingStartResult.getAndSet(null);
+                  if (startResult != null) {
+                    startResult.success(null);
+                  }
+                  eventDispatcher.send("cardEntryCancel", null);
+                  paymentEventStream.emit(PaymentEventStream.TYPE_CANCEL, PaymentEventStream.SOURCE_CARD_ENTRY, null);
                 } else if (cardEntryActivityResult.isSuccess()) {
-                  channel.invokeMethod("cardEntryComplete", null);
+                  eventDispatcher.send("cardEntryComplete", null);
+                  paymentEventStream.emit(PaymentEventStream.TYPE_COMPLETE, PaymentEventStream.SOURCE_CARD_ENTRY, null);
                 }
               }
-            }, delayDurationMs);
+            };
+            CardEntryCloseTracker tracker = closeTracker;
+            closeTracker = null;
+            if (tracker != null) {
+              tracker.runWhenClosed(delivery);
+            } else {
+              mainThread.postDelayed(delivery, getCloseExitAnimationDurationMs());
+            }
           }
         });
-        return false;
+        return true;
       }
     });
 
-    CardEntry.setCardNonceBackgroundHandler(new CardNonceBackgroundHandler() {
+    nonceHandler = new CardNonceBackgroundHandler() {
       @Override
       public CardEntryActivityCommand handleEnteredCardInBackground(CardDetails cardDetails) {
-        Map<String, Object> mapToReturn = cardDetailsConverter.toMapObject(cardDetails);
-        countDownLatch = new CountDownLatch(1);
-        channel.invokeMethod("cardEntryDidObtainCardDetails", mapToReturn);
+        if (released) {
+          return new CardEntryActivityCommand.ShowError(PLUGIN_DETACHED.getMessage());
+        }
+        flowState.transition(PaymentFlowState.State.AWAITING_NONCE, PaymentFlowState.State.PROCESSING);
+        int requestId = requestIdGenerator.incrementAndGet();
+        PendingCardEntryCommand pendingCommand = new PendingCardEntryCommand(cardDetails.getNonce());
+        pendingCommands.put(requestId, pendingCommand);
+        if (released) {
+          // release() may have completed the pending commands before this one was added.
+          pendingCommand.complete(new CardEntryActivityCommand.ShowError(PLUGIN_DETACHED.getMessage()));
+        }
+        nonceJournal.append(NonceJournal.SOURCE_CARD_ENTRY, cardDetails);
+        recentCardCache.add(cardDetails.getCard());
+
+        final Object payload;
+        if (useBinaryCodec) {
+          payload = cardDetailsConverter.toByteArray(cardDetails, requestId);
+        } else {
+          Map<String, Object> mapToReturn = cardDetailsConverter.toMapObject(cardDetails);
+          mapToReturn.put("requestId", requestId);
+          payload = mapToReturn;
+        }
+        final MethodChannel.Result startResult = pendingStartResult.getAndSet(null);
+        if (startResult != null) {
+          // Nonces after a showCardNonceProcessingError retry fall back to the callback below.
+          eventDispatcher.runInOrder(new Runnable() {
+            @Override
+            public void run() {
+              startResult.success(payload);
+            }
+          });
+        } else {
+          eventDispatcher.send("cardEntryDidObtainCardDetails", payload);
+        }
+        paymentEventStream.emit(PaymentEventStream.TYPE_CARD_DETAILS, PaymentEventStream.SOURCE_CARD_ENTRY, payload);
+        long waitStartNanos = PerformanceMetrics.startTimer();
         try {
-          // completeCardEntry or showCardNonceProcessingError must be called,
-          // otherwise the thread will be leaked.
-          countDownLatch.await();
+          // completeCardEntry or showCardNonceProcessingError is expected to be called
+          // before the deadline, otherwise the card entry shows a timeout error.
+          CardEntryActivityCommand command = pendingCommand.await(cardNonceResponseTimeoutMs);
+          performanceMetrics.record(PerformanceMetrics.PHASE_CARD_ENTRY_NONCE_RESPONSE, waitStartNanos);
+          if (command == null) {
+            command = new CardEntryActivityCommand.ShowError(
+                applicationContext.getString(R.string.sqip_flutter_card_nonce_response_timeout_message));
+          }
+          flowState.transition(PaymentFlowState.State.PROCESSING, command instanceof CardEntryActivityCommand.Finish
+              ? PaymentFlowState.State.CLOSING
+              : PaymentFlowState.State.AWAITING_NONCE);
+          return command;
         } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
           throw new RuntimeException(e);
+        } finally {
+          pendingCommands.remove(requestId);
         }
+      }
+    };
+    installNonceHandler(cardEntrySdk, nonceHandler);
+  }
+
+  private static synchronized void installNonceHandler(CardEntrySdk cardEntrySdk,
+      CardNonceBackgroundHandler nonceHandler) {
+    installedNonceHandler = nonceHandler;
+    cardEntrySdk.setCardNonceBackgroundHandler(nonceHandler);
+  }
+
+  private static synchronized void uninstallNonceHandler(CardEntrySdk cardEntrySdk,
+      CardNonceBackgroundHandler nonceHandler) {
+    // A module created for a newer engine may have replaced it already.
+    if (installedNonceHandler == nonceHandler) {
+      installedNonceHandler = null;
+      cardEntrySdk.setCardNonceBackgroundHandler(DETACHED_NONCE_HANDLER);
+    }
+  }
 
-        return reference.get();
+  /** Registers this module's methods; the module is only created once one of them is called. */
+  public static void registerMethods(MethodCallDispatcher dispatcher, final LazyModule<CardEntryModule> module) {
+    dispatcher.registerOnMainThread("startCardEntryFlow", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().startCardEntryFlow(result,
+            MethodCallDispatcher.requireBoolean(call, "collectPostalCode"),
+            MethodCallDispatcher.optionalLong(call, "cardNonceResponseTimeoutMs"),
+            MethodCallDispatcher.optionalBoolean(call, "awaitResult"),
+            MethodCallDispatcher.optionalBoolean(call, "useLifecycleCloseDetection"));
+      }
+    });
+    dispatcher.register("completeCardEntry", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().completeCardEntry(result, MethodCallDispatcher.requireInt(call, "requestId"));
       }
     });
+    dispatcher.register("showCardNonceProcessingError", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().showCardNonceProcessingError(result,
+            MethodCallDispatcher.requireInt(call, "requestId"),
+            MethodCallDispatcher.requireString(call, "errorMessage"));
+      }
+    });
+  }
+
+  public void setUseBinaryCodec(boolean useBinaryCodec) {
+    this.useBinaryCodec = useBinaryCodec;
+  }
+
+  public void startCardEntryFlow(MethodChannel.Result result, boolean collectPostalCode, Long cardNonceResponseTimeoutMs, boolean awaitResult, boolean useLifecycleCloseDetection) {
+    Activity currentActivity = activityProvider.getActivity();
+    if (currentActivity == null) {
+      ErrorHandlerUtils.NO_ACTIVITY.sendTo(result);
+      return;
+    }
+    if (!flowState.tryStart()) {
+      CARD_ENTRY_ALREADY_IN_PROGRESS.sendTo(result);
+      return;
+    }
+    this.cardNonceResponseTimeoutMs = cardNonceResponseTimeoutMs != null
+        ? cardNonceResponseTimeoutMs
+        : DEFAULT_CARD_NONCE_RESPONSE_TIMEOUT_MS;
+    MethodChannel.Result previousStartResult = pendingStartResult.getAndSet(awaitResult ? result : null);
+    if (previousStartResult != null) {
+      previousStartResult.success(null);
+    }
+    if (closeTracker != null) {
+      closeTracker.unregister();
+      closeTracker = null;
+    }
+    if (useLifecycleCloseDetection) {
+      closeTracker = new CardEntryCloseTracker(currentActivity);
+      currentActivity.getApplication().registerActivityLifecycleCallbacks(closeTracker);
+    }
+    try {
+      cardEntrySdk.startCardEntryActivity(currentActivity, collectPostalCode);
+    } catch (RuntimeException e) {
+      flowState.moveTo(PaymentFlowState.State.IDLE);
+      throw e;
+    }
+    flowState.transition(PaymentFlowState.State.LAUNCHING, PaymentFlowState.State.AWAITING_NONCE);
+    if (!awaitResult) {
+      result.success(null);
+    }
+  }
+
+  public void completeCardEntry(MethodChannel.Result result, int requestId) {
+    replyToPendingCommand(result, requestId, new CardEntryActivityCommand.Finish());
+  }
+
+  public void showCardNonceProcessingError(MethodChannel.Result result, int requestId, String errorMessage) {
+    replyToPendingCommand(result, requestId, new CardEntryActivityCommand.ShowError(errorMessage));
+  }
+
+  private void replyToPendingCommand(MethodChannel.Result result, int requestId, CardEntryActivityCommand command) {
+    if (completePendingCommand(requestId, command)) {
+      result.success(null);
+    } else {
+      CARD_NONCE_REQUEST_EXPIRED.sendTo(result);
+    }
+  }
+
+  /**
+   * Called when the plugin detaches from the engine, after which this module is not used again.
+   * Card entry still on screen shows an error for any nonce waiting on Dart, and an awaited
+   * startCardEntryFlow call fails, as Dart can no longer answer either.
+   */
+  public void release() {
+    released = true;
+    uninstallNonceHandler(cardEntrySdk, nonceHandler);
+    for (PendingCardEntryCommand pendingCommand : pendingCommands.values()) {
+      pendingCommand.complete(new CardEntryActivityCommand.ShowError(PLUGIN_DETACHED.getMessage()));
+    }
+    MethodChannel.Result startResult = pendingStartResult.getAndSet(null);
+    if (startResult != null) {
+      PLUGIN_DETACHED.sendTo(startResult);
+    }
+    activityResultRouter.unregister(CardEntry.DEFAULT_CARD_ENTRY_REQUEST_CODE);
+    flowState.moveTo(PaymentFlowState.State.IDLE);
+    if (closeTracker != null) {
+      closeTracker.unregister();
+      closeTracker = null;
+    }
+  }
+
+  /**
+   * Returns whether {@code command} answered the request. A reply for a request that is unknown,
+   * timed out or was already answered is dropped rather than applied to a newer nonce.
+   */
+  private boolean completePendingCommand(int requestId, CardEntryActivityCommand command) {
+    PendingCardEntryCommand pendingCommand = pendingCommands.get(requestId);
+    if (pendingCommand == null || !pendingCommand.complete(command)) {
+      return false;
+    }
+    // Either reply means Dart has dealt with the nonce, charged or rejected, so it needs no recovery.
+    nonceJournal.acknowledge(pendingCommand.nonce);
+    return true;
   }
 
-  public void startCardEntryFlow(MethodChannel.Result result, boolean collectPostalCode) {
-    CardEntry.startCardEntryActivity(currentActivity, collectPostalCode);
-    result.success(null);
+  /**
+   * Does work the first card entry would otherwise do on the main thread: loading and
+   * initializing the SDK's card entry classes and the converters, and applying the card entry
+   * theme to read its close animation. None of it needs a module, so the nonce handler isn't
+   * installed. Call it off the main thread.
+   */
+  public static void prewarm(Context applicationContext) {
+    Class<?>[] cardEntryClasses = {
+        CardEntry.class, CardEntryActivityCommand.Finish.class,
+        CardEntryActivityCommand.ShowError.class, CardEntryActivityResult.class, CardDetails.class,
+        Card.class, CardConverter.class, CardDetailsConverter.class
+    };
+    for (Class<?> cardEntryClass : cardEntryClasses) {
+      try {
+        // The class literal only loads the class, this also runs its static initializers.
+        Class.forName(cardEntryClass.getName(), true, cardEntryClass.getClassLoader());
+      } catch (ClassNotFoundException ignored) {
+      }
+    }
+    if (closeExitAnimationDurationMs < 0) {
+      closeExitAnimationDurationMs = readCardEntryCloseExitAnimationDurationMs(applicationContext);
+    }
   }
 
-  public void completeCardEntry(MethodChannel.Result result) {
-    reference.set(new CardEntryActivityCommand.Finish());
-    countDownLatch.countDown();
-    result.success(null);
+  /** For the JVM tests, which can't inflate the card entry theme. */
+  static void setCloseExitAnimationDurationMs(long durationMs) {
+    closeExitAnimationDurationMs = durationMs;
   }
 
-  public void showCardNonceProcessingError(MethodChannel.Result result, String errorMessage) {
-    reference.set(new CardEntryActivityCommand.ShowError(errorMessage));
-    countDownLatch.countDown();
-    result.success(null);
+  private long getCloseExitAnimationDurationMs() {
+    if (closeExitAnimationDurationMs < 0) {
+      closeExitAnimationDurationMs = readCardEntryCloseExitAnimationDurationMs(applicationContext);
+    }
+    return closeExitAnimationDurationMs;
   }
 
-  private long readCardEntryCloseExitAnimationDurationMs() {
+  private static long readCardEntryCloseExitAnimationDurationMs(Context applicationContext) {
     long delayDurationMs = 0;
-    Resources.Theme theme = currentActivity.getResources().newTheme();
+    Resources.Theme theme = applicationContext.getResources().newTheme();
     theme.applyStyle(R.style.sqip_Theme_CardEntry, true);
     int[] attrs = { android.R.attr.activityCloseExitAnimation };
     TypedArray typedArray = theme.obtainStyledAttributes(null, attrs, android.R.attr.windowAnimationStyle, 0);
     int resId = typedArray.getResourceId(0, -1);
     if (resId != -1) {
       try {
-        Animation animation = loadAnimation(currentActivity, resId);
+        Animation animation = loadAnimation(applicationContext, resId);
         delayDurationMs = animation.getDuration();
       } catch (Resources.NotFoundException ignored) {
       }
@@ -132,4 +420,110 @@ final public class CardEntryModule {
     typedArray.recycle();
     return delayDurationMs;
   }
+
+  /**
+   * Remembers the activity launched for card entry and runs the result delivery once that
+   * activity has stopped, which happens after its close animation has finished.
+   */
+  private final class CardEntryCloseTracker implements Application.ActivityLifecycleCallbacks {
+    private final Application application;
+    private final Activity hostActivity;
+    private Activity cardEntryActivity;
+    private boolean cardEntryActivityStopped;
+    private Runnable delivery;
+
+    CardEntryCloseTracker(Activity hostActivity) {
+      this.application = hostActivity.getApplication();
+      this.hostActivity = hostActivity;
+    }
+
+    void runWhenClosed(Runnable delivery) {
+      if (cardEntryActivity == null || cardEntryActivityStopped) {
+        unregister();
+        delivery.run();
+        return;
+      }
+      this.delivery = delivery;
+      mainThread.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          deliver();
+        }
+      }, MAX_CARD_ENTRY_CLOSE_WAIT_MS);
+    }
+
+    void unregister() {
+      application.unregisterActivityLifecycleCallbacks(this);
+      cardEntryActivity = null;
+    }
+
+    private void deliver() {
+      Runnable delivery = this.delivery;
+      this.delivery = null;
+      if (delivery != null) {
+        unregister();
+        delivery.run();
+      }
+    }
+
+    @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+      if (cardEntryActivity == null && activity != hostActivity) {
+        cardEntryActivity = activity;
+      }
+    }
+
+    @Override public void onActivityStopped(Activity activity) {
+      if (activity == cardEntryActivity) {
+        cardEntryActivityStopped = true;
+        deliver();
+      }
+    }
+
+    @Override public void onActivityStarted(Activity activity) {
+    }
+
+    @Override public void onActivityResumed(Activity activity) {
+    }
+
+    @Override public void onActivityPaused(Activity activity) {
+    }
+
+    @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override public void onActivityDestroyed(Activity activity) {
+    }
+  }
+
+  private static final class PendingCardEntryCommand {
+    // Claims a request that timed out, so a late reply can't complete it. Never handed to the SDK.
+    private static final CardEntryActivityCommand TIMED_OUT = new CardEntryActivityCommand.ShowError("");
+
+    private final CountDownLatch countDownLatch = new CountDownLatch(1);
+    private final AtomicReference<CardEntryActivityCommand> reference = new AtomicReference<>();
+    final String nonce;
+
+    PendingCardEntryCommand(String nonce) {
+      this.nonce = nonce;
+    }
+
+    boolean complete(CardEntryActivityCommand command) {
+      if (reference.compareAndSet(null, command)) {
+        countDownLatch.countDown();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Returns the command the request was completed with, or null if it timed out. A reply racing
+     * the timeout either wins and is returned, or finds the request taken and isn't applied.
+     */
+    CardEntryActivityCommand await(long timeoutMs) throws InterruptedException {
+      if (!countDownLatch.await(timeoutMs, TimeUnit.MILLISECONDS) && complete(TIMED_OUT)) {
+        return null;
+      }
+      return reference.get();
+    }
+  }
 }
@@ -0,0 +1,46 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+import android.content.Intent;
+import sqip.Callback;
+import sqip.CardEntry;
+import sqip.CardEntryActivityResult;
+import sqip.CardNonceBackgroundHandler;
+
+/** The card entry entry points of the In-App Payments SDK, so the JVM tests can stand in a fake. */
+interface CardEntrySdk {
+  CardEntrySdk DEFAULT = new CardEntrySdk() {
+    @Override public void setCardNonceBackgroundHandler(CardNonceBackgroundHandler handler) {
+      CardEntry.setCardNonceBackgroundHandler(handler);
+    }
+
+    @Override public void startCardEntryActivity(Activity activity, boolean collectPostalCode) {
+      CardEntry.startCardEntryActivity(activity, collectPostalCode);
+    }
+
+    @Override public void handleActivityResult(Intent data, Callback<CardEntryActivityResult> callback) {
+      CardEntry.handleActivityResult(data, callback);
+    }
+  };
+
+  void setCardNonceBackgroundHandler(CardNonceBackgroundHandler handler);
+
+  void startCardEntryActivity(Activity activity, boolean collectPostalCode);
+
+  void handleActivityResult(Intent data, Callback<CardEntryActivityResult> callback);
+}
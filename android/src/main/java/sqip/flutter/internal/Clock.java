@@ -0,0 +1,37 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.os.SystemClock;
+
+/** A source of milliseconds, so the JVM tests can move time by hand. */
+interface Clock {
+  /** Wall clock time, for timestamps that outlive the process. */
+  Clock WALL = new Clock() {
+    @Override public long millis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  /** Time since boot, for intervals that must not jump with the wall clock. */
+  Clock ELAPSED_REALTIME = new Clock() {
+    @Override public long millis() {
+      return SystemClock.elapsedRealtime();
+    }
+  };
+
+  long millis();
+}
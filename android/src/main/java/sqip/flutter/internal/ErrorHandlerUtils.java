@@ -15,15 +15,56 @@
 */
 package sqip.flutter.internal;
 
+import android.content.Context;
+import io.flutter.plugin.common.MethodChannel;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import sqip.flutter.R;
 
-final class ErrorHandlerUtils {
+public final class ErrorHandlerUtils {
   public static final String USAGE_ERROR = "USAGE_ERROR";
 
+  // Android only sqip.flutter plugin errors and messages shared by all modules
+  public static final String FL_NO_ACTIVITY = "fl_no_activity";
+  public static final String FL_MESSAGE_NO_ACTIVITY = "The plugin is not attached to an activity, please call this method while the app is in the foreground.";
+
+  public static final ErrorPayload NO_ACTIVITY = definePluginError(FL_NO_ACTIVITY, FL_MESSAGE_NO_ACTIVITY);
+
+  private static final ConcurrentMap<String, String> pluginErrorMessages = new ConcurrentHashMap<>();
+  private static volatile String developerErrorMessageFormat;
+
+  /** Resolves the localized developer error message once, must be called before any error is reported. */
+  public static void initialize(Context context) {
+    if (developerErrorMessageFormat == null) {
+      developerErrorMessageFormat = context.getString(R.string.sqip_flutter_developer_error_message);
+    }
+  }
+
   public static String getPluginErrorMessage(String pluginErrorCode) {
-    return String.format(String.valueOf(R.string.sqip_flutter_developer_error_message), pluginErrorCode);
+    String message = pluginErrorMessages.get(pluginErrorCode);
+    if (message != null) {
+      return message;
+    }
+    String format = developerErrorMessageFormat;
+    if (format == null) {
+      return pluginErrorCode;
+    }
+    message = String.format(format, pluginErrorCode);
+    pluginErrorMessages.putIfAbsent(pluginErrorCode, message);
+    return message;
+  }
+
+  /** Defines a fixed plugin error whose payloads are built once and shared by every occurrence. */
+  public static ErrorPayload definePluginError(String debugCode, String debugMessage) {
+    return new ErrorPayload(USAGE_ERROR, null, debugCode, debugMessage);
+  }
+
+  /** Wraps an error reported by the SDK, which carries its own message. */
+  public static ErrorPayload createSdkError(String code, String message, String debugCode, String debugMessage) {
+    return new ErrorPayload(code, message, debugCode, debugMessage);
   }
 
   public static Map<String, String> getDebugErrorObject(String debugCode, String debugMessage) {
@@ -33,8 +74,8 @@ final class ErrorHandlerUtils {
     return errorData;
   }
 
-  public static Map<String, String> getCallbackErrorObject(String code, String message, String debugCode, String debugMessage) {
-    Map<String, String> errorObject = new LinkedHashMap<>();
+  public static Map<String, Object> getCallbackErrorObject(String code, String message, String debugCode, String debugMessage) {
+    Map<String, Object> errorObject = new LinkedHashMap<>();
     errorObject.put("code", code);
     errorObject.put("message", message);
     errorObject.put("debugCode", debugCode);
@@ -48,4 +89,66 @@ final class ErrorHandlerUtils {
     }
     return reference;
   }
+
+  /** An immutable error with the payloads sent to Dart, built once per error. */
+  public static final class ErrorPayload {
+    private final String code;
+    private final String debugCode;
+    private final String debugMessage;
+    private final Map<String, String> debugErrorObject;
+    // Plugin errors localize their message on first use, as it needs the resources.
+    private volatile String message;
+    private volatile Map<String, Object> callbackErrorObject;
+
+    private ErrorPayload(String code, String message, String debugCode, String debugMessage) {
+      this.code = code;
+      this.message = message;
+      this.debugCode = debugCode;
+      this.debugMessage = debugMessage;
+      debugErrorObject = Collections.unmodifiableMap(ErrorHandlerUtils.getDebugErrorObject(debugCode, debugMessage));
+    }
+
+    public String getCode() {
+      return code;
+    }
+
+    public String getMessage() {
+      String resolvedMessage = message;
+      if (resolvedMessage == null) {
+        resolvedMessage = getPluginErrorMessage(debugCode);
+        if (developerErrorMessageFormat != null) {
+          message = resolvedMessage;
+        }
+      }
+      return resolvedMessage;
+    }
+
+    public String getDebugCode() {
+      return debugCode;
+    }
+
+    public String getDebugMessage() {
+      return debugMessage;
+    }
+
+    public Map<String, String> getDebugErrorObject() {
+      return debugErrorObject;
+    }
+
+    public Map<String, Object> getCallbackErrorObject() {
+      Map<String, Object> errorObject = callbackErrorObject;
+      if (errorObject == null) {
+        errorObject = Collections.unmodifiableMap(
+            ErrorHandlerUtils.getCallbackErrorObject(code, getMessage(), debugCode, debugMessage));
+        if (developerErrorMessageFormat != null) {
+          callbackErrorObject = errorObject;
+        }
+      }
+      return errorObject;
+    }
+
+    public void sendTo(MethodChannel.Result result) {
+      result.error(code, getMessage(), debugErrorObject);
+    }
+  }
 }
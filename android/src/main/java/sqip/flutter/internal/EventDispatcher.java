@@ -0,0 +1,146 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.MethodChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single way native code talks to Dart. Events can be sent from any thread; they are queued
+ * and delivered in order on the main thread, and events queued before a drain runs go out as one
+ * "batchedEvents" message so a burst costs a single main thread wakeup and channel hop.
+ */
+public final class EventDispatcher {
+  static final String METHOD_BATCHED_EVENTS = "batchedEvents";
+
+  private final MethodChannel channel;
+  private final MainThread mainThread;
+  private final Queue<PendingEvent> pendingEvents;
+  private final AtomicBoolean drainScheduled;
+  private final Runnable drain;
+
+  public EventDispatcher(MethodChannel channel) {
+    this(channel, LooperMainThread.INSTANCE);
+  }
+
+  EventDispatcher(MethodChannel channel, MainThread mainThread) {
+    this.channel = channel;
+    this.mainThread = mainThread;
+    pendingEvents = new ConcurrentLinkedQueue<>();
+    drainScheduled = new AtomicBoolean();
+    drain = new Runnable() {
+      @Override
+      public void run() {
+        drainScheduled.set(false);
+        drainPendingEvents();
+      }
+    };
+  }
+
+  /** Sends {@code method} with {@code arguments} to Dart after every event sent before it. */
+  public void send(String method, Object arguments) {
+    enqueue(new PendingEvent(method, arguments, null, false));
+  }
+
+  /** Runs {@code action} on the main thread after every event sent before it, e.g. to complete a result. */
+  public void runInOrder(Runnable action) {
+    enqueue(new PendingEvent(null, null, action, false));
+  }
+
+  /**
+   * Like {@link #runInOrder(Runnable)}, but events sent after {@code action} may still join the
+   * batch sent before it, so {@code action} can run once that batch is out. For work that doesn't
+   * go over the method channel, e.g. emitting to an event stream.
+   */
+  public void runAfterBatch(Runnable action) {
+    enqueue(new PendingEvent(null, null, action, true));
+  }
+
+  private void enqueue(PendingEvent event) {
+    pendingEvents.add(event);
+    if (drainScheduled.compareAndSet(false, true)) {
+      mainThread.post(drain);
+    }
+  }
+
+  // Main thread only.
+  private void drainPendingEvents() {
+    List<Object> batch = null;
+    PendingEvent first = null;
+    List<Runnable> deferredActions = null;
+    PendingEvent event;
+    while ((event = pendingEvents.poll()) != null) {
+      if (event.action != null && event.deferred) {
+        if (deferredActions == null) {
+          deferredActions = new ArrayList<>();
+        }
+        deferredActions.add(event.action);
+      } else if (event.action != null) {
+        flush(first, batch, deferredActions);
+        first = null;
+        batch = null;
+        deferredActions = null;
+        event.action.run();
+      } else if (first == null) {
+        first = event;
+      } else {
+        if (batch == null) {
+          batch = new ArrayList<>();
+          batch.add(first.toListObject());
+        }
+        batch.add(event.toListObject());
+      }
+    }
+    flush(first, batch, deferredActions);
+  }
+
+  private void flush(PendingEvent first, List<Object> batch, List<Runnable> deferredActions) {
+    if (batch != null) {
+      channel.invokeMethod(METHOD_BATCHED_EVENTS, batch);
+    } else if (first != null) {
+      // A lone event keeps its own method name, so it looks the same as it always has to Dart.
+      channel.invokeMethod(first.method, first.arguments);
+    }
+    if (deferredActions != null) {
+      for (Runnable action : deferredActions) {
+        action.run();
+      }
+    }
+  }
+
+  private static final class PendingEvent {
+    final String method;
+    final Object arguments;
+    final Runnable action;
+    final boolean deferred;
+
+    PendingEvent(String method, Object arguments, Runnable action, boolean deferred) {
+      this.method = method;
+      this.arguments = arguments;
+      this.action = action;
+      this.deferred = deferred;
+    }
+
+    List<Object> toListObject() {
+      return Arrays.asList(method, arguments);
+    }
+  }
+}
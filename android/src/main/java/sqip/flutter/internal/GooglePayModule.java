@@ -16,23 +16,27 @@ limitations under the License.
 package sqip.flutter.internal;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.wallet.AutoResolveHelper;
 import com.google.android.gms.wallet.IsReadyToPayRequest;
-import com.google.android.gms.wallet.PaymentData;
 import com.google.android.gms.wallet.PaymentDataRequest;
-import com.google.android.gms.wallet.PaymentsClient;
 import com.google.android.gms.wallet.TransactionInfo;
-import com.google.android.gms.wallet.Wallet;
-import sqip.Callback;
-import sqip.GooglePay;
-import sqip.GooglePayNonceResult;
+import sqip.CardDetails;
+import sqip.flutter.internal.converter.BinaryCodec;
 import sqip.flutter.internal.converter.CardConverter;
 import sqip.flutter.internal.converter.CardDetailsConverter;
+import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final public class GooglePayModule {
 
@@ -43,77 +47,240 @@ final public class GooglePayModule {
   private static final String FL_MESSAGE_GOOGLE_PAY_NOT_INITIALIZED = "Please initialize google pay before you can call other methods.";
   private static final String FL_MESSAGE_GOOGLE_PAY_RESULT_ERROR = "Failed to launch google pay, please make sure you configured google pay correctly.";
   private static final String FL_MESSAGE_GOOGLE_PAY_UNKNOWN_ERROR = "Unknown google pay activity result status.";
+  private static final String FL_GOOGLE_PAY_ALREADY_IN_PROGRESS = "fl_google_pay_already_in_progress";
+  private static final String FL_MESSAGE_GOOGLE_PAY_ALREADY_IN_PROGRESS = "A google pay request is already in progress, please wait for it to finish before requesting another nonce.";
+  private static final ErrorHandlerUtils.ErrorPayload GOOGLE_PAY_ALREADY_IN_PROGRESS =
+      ErrorHandlerUtils.definePluginError(FL_GOOGLE_PAY_ALREADY_IN_PROGRESS, FL_MESSAGE_GOOGLE_PAY_ALREADY_IN_PROGRESS);
+  private static final ErrorHandlerUtils.ErrorPayload GOOGLE_PAY_NOT_INITIALIZED =
+      ErrorHandlerUtils.definePluginError(FL_GOOGLE_PAY_NOT_INITIALIZED, FL_MESSAGE_GOOGLE_PAY_NOT_INITIALIZED);
+  private static final ErrorHandlerUtils.ErrorPayload GOOGLE_PAY_RESULT_ERROR =
+      ErrorHandlerUtils.definePluginError(FL_GOOGLE_PAY_RESULT_ERROR, FL_MESSAGE_GOOGLE_PAY_RESULT_ERROR);
+  private static final ErrorHandlerUtils.ErrorPayload GOOGLE_PAY_UNKNOWN_ERROR =
+      ErrorHandlerUtils.definePluginError(FL_GOOGLE_PAY_UNKNOWN_ERROR, FL_MESSAGE_GOOGLE_PAY_UNKNOWN_ERROR);
 
-  private static final int LOAD_PAYMENT_DATA_REQUEST_CODE = 4111;
+  // Each in-flight request gets its own code in [BASE, BASE + COUNT) so results can't be confused.
+  private static final int LOAD_PAYMENT_DATA_REQUEST_CODE_BASE = 4111;
+  private static final int LOAD_PAYMENT_DATA_REQUEST_CODE_COUNT = 256;
+  private static final long READY_TO_PAY_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final int PAYMENT_DATA_REQUEST_CACHE_SIZE = 8;
 
-  private final Activity currentActivity;
+  private final Context applicationContext;
+  private final ActivityProvider activityProvider;
+  private final EventDispatcher eventDispatcher;
+  private final PaymentEventStream paymentEventStream;
+  private final NonceJournal nonceJournal;
+  private final RecentCardCache recentCardCache;
+  private final PerformanceMetrics performanceMetrics;
   private final CardDetailsConverter cardDetailsConverter;
+  private final Map<String, PaymentDataRequest> paymentDataRequestCache;
+  private final Map<Integer, GooglePayRequest> pendingRequests;
+  private final AtomicInteger requestCodeGenerator;
+  private final PaymentFlowState flowState;
+  private final GooglePayNonceExchanger nonceExchanger;
+  private final ActivityResultRouter activityResultRouter;
+  private final PluginRegistry.ActivityResultListener loadPaymentDataResultListener;
+  private final GooglePaySdk googlePaySdk;
+  private final Clock clock;
 
-  private String squareLocationId;
-  private PaymentsClient googlePayClients;
+  private volatile Configuration configuration;
+  private volatile boolean useBinaryCodec;
+  // Shared by every canUseGooglePay caller until it fails, expires or the configuration changes.
+  private Configuration readyToPayConfiguration;
+  private Task<Boolean> readyToPayTask;
+  private long readyToPayTaskStartedAtMs;
 
-  public GooglePayModule(PluginRegistry.Registrar registrar, final MethodChannel channel) {
-    currentActivity = registrar.activity();
+  public GooglePayModule(Context applicationContext, ActivityProvider activityProvider, EventDispatcher eventDispatcher,
+      PaymentEventStream paymentEventStream, NonceJournal nonceJournal, RecentCardCache recentCardCache,
+      ActivityResultRouter activityResultRouter, PerformanceMetrics performanceMetrics) {
+    this(applicationContext, activityProvider, eventDispatcher, paymentEventStream, nonceJournal, recentCardCache,
+        activityResultRouter, performanceMetrics, GooglePaySdk.DEFAULT, LooperMainThread.INSTANCE, Clock.ELAPSED_REALTIME);
+  }
+
+  GooglePayModule(Context applicationContext, ActivityProvider activityProvider, EventDispatcher eventDispatcher,
+      PaymentEventStream paymentEventStream, NonceJournal nonceJournal, RecentCardCache recentCardCache,
+      ActivityResultRouter activityResultRouter, PerformanceMetrics performanceMetrics, GooglePaySdk googlePaySdk,
+      MainThread mainThread, Clock clock) {
+    this.applicationContext = applicationContext;
+    this.activityProvider = activityProvider;
+    this.eventDispatcher = eventDispatcher;
+    this.paymentEventStream = paymentEventStream;
+    this.nonceJournal = nonceJournal;
+    this.recentCardCache = recentCardCache;
+    this.performanceMetrics = performanceMetrics;
     cardDetailsConverter = new CardDetailsConverter(new CardConverter());
+    paymentDataRequestCache = new LinkedHashMap<String, PaymentDataRequest>(PAYMENT_DATA_REQUEST_CACHE_SIZE, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, PaymentDataRequest> eldest) {
+        return size() > PAYMENT_DATA_REQUEST_CACHE_SIZE;
+      }
+    };
+    pendingRequests = new ConcurrentHashMap<>();
+    requestCodeGenerator = new AtomicInteger();
+    flowState = new PaymentFlowState();
+    nonceExchanger = new GooglePayNonceExchanger(performanceMetrics, googlePaySdk, mainThread, clock, new Random());
+    this.googlePaySdk = googlePaySdk;
+    this.clock = clock;
+    this.activityResultRouter = activityResultRouter;
 
-    // Register callback when google pay activity is dismissed
-    registrar.addActivityResultListener(new PluginRegistry.ActivityResultListener() {
+    // Registered for each request code in flight, called when google pay activity is dismissed
+    loadPaymentDataResultListener = new PluginRegistry.ActivityResultListener() {
       @Override public boolean onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == LOAD_PAYMENT_DATA_REQUEST_CODE) {
-          switch (resultCode) {
-            case Activity.RESULT_OK:
-              PaymentData paymentData = PaymentData.getFromIntent(data);
-              ErrorHandlerUtils.checkNotNull(paymentData, "paymentData should never be null.");
-              String googlePayToken = paymentData.getPaymentMethodToken().getToken();
-              GooglePay.requestGooglePayNonce(googlePayToken).enqueue(
-                  new Callback<GooglePayNonceResult>() {
-                    @Override public void onResult(GooglePayNonceResult googlePayNonceResult) {
-                      if (googlePayNonceResult.isSuccess()) {
-                        channel.invokeMethod("onGooglePayNonceRequestSuccess", cardDetailsConverter.toMapObject(googlePayNonceResult.getSuccessValue()));
-                      } else if (googlePayNonceResult.isError()) {
-                        GooglePayNonceResult.Error error = ((GooglePayNonceResult.Error) googlePayNonceResult);
-                        channel.invokeMethod("onGooglePayNonceRequestFailure", ErrorHandlerUtils.getCallbackErrorObject(error.getCode().name(), error.getMessage(), error.getDebugCode(), error.getDebugMessage()));
-                      }
-                    }
-                  });
-              break;
-            case Activity.RESULT_CANCELED:
-              channel.invokeMethod("onGooglePayCanceled", null);
-              break;
-            case AutoResolveHelper.RESULT_ERROR:
-              channel.invokeMethod("onGooglePayNonceRequestFailure",
-                  ErrorHandlerUtils.getCallbackErrorObject(ErrorHandlerUtils.USAGE_ERROR, ErrorHandlerUtils.getPluginErrorMessage(FL_GOOGLE_PAY_RESULT_ERROR), FL_GOOGLE_PAY_RESULT_ERROR, FL_MESSAGE_GOOGLE_PAY_RESULT_ERROR));
-              break;
-            default:
-              channel.invokeMethod("onGooglePayNonceRequestFailure",
-                  ErrorHandlerUtils.getCallbackErrorObject(ErrorHandlerUtils.USAGE_ERROR, ErrorHandlerUtils.getPluginErrorMessage(FL_GOOGLE_PAY_UNKNOWN_ERROR), FL_GOOGLE_PAY_UNKNOWN_ERROR, FL_MESSAGE_GOOGLE_PAY_UNKNOWN_ERROR));
-          }
+        GooglePayModule.this.activityResultRouter.unregister(requestCode);
+        GooglePayRequest request = pendingRequests.remove(requestCode);
+        if (request != null) {
+          handleLoadPaymentDataResult(request, resultCode, data);
+        }
+        return true;
+      }
+    };
+  }
+
+  private void handleLoadPaymentDataResult(final GooglePayRequest request, int resultCode, Intent data) {
+    switch (resultCode) {
+      case Activity.RESULT_OK:
+        String googlePayToken = googlePaySdk.getGooglePayToken(data);
+        if (googlePayToken == null) {
+          onNonceRequestFailure(request, GOOGLE_PAY_RESULT_ERROR);
+          break;
+        }
+        flowState.moveTo(PaymentFlowState.State.PROCESSING);
+        try {
+          nonceExchanger.exchange(googlePayToken, new GooglePayNonceExchanger.Listener() {
+            @Override public void onSuccess(CardDetails cardDetails) {
+              onNonceRequestSuccess(request, cardDetails);
+            }
+
+            @Override public void onFailure(ErrorHandlerUtils.ErrorPayload error) {
+              onNonceRequestFailure(request, error);
+            }
+          });
+        } catch (RuntimeException e) {
+          flowState.moveTo(PaymentFlowState.State.IDLE);
+          throw e;
+        }
+        break;
+      case Activity.RESULT_CANCELED:
+        flowState.moveTo(PaymentFlowState.State.IDLE);
+        Object cancelPayload = getCancelPayload(request);
+        if (request.result != null) {
+          request.result.success(null);
+        } else {
+          eventDispatcher.send("onGooglePayCanceled", cancelPayload);
         }
-        return false;
+        paymentEventStream.emit(PaymentEventStream.TYPE_CANCEL, PaymentEventStream.SOURCE_GOOGLE_PAY, cancelPayload);
+        break;
+      case AutoResolveHelper.RESULT_ERROR:
+        onNonceRequestFailure(request, GOOGLE_PAY_RESULT_ERROR);
+        break;
+      default:
+        onNonceRequestFailure(request, GOOGLE_PAY_UNKNOWN_ERROR);
+    }
+  }
+
+  private void onNonceRequestSuccess(GooglePayRequest request, CardDetails cardDetails) {
+    flowState.moveTo(PaymentFlowState.State.IDLE);
+    nonceJournal.append(NonceJournal.SOURCE_GOOGLE_PAY, cardDetails);
+    recentCardCache.add(cardDetails.getCard());
+    Object payload = getCardDetailsPayload(request, cardDetails);
+    if (request.result != null) {
+      request.result.success(payload);
+    } else {
+      eventDispatcher.send("onGooglePayNonceRequestSuccess", payload);
+    }
+    paymentEventStream.emit(PaymentEventStream.TYPE_GOOGLE_PAY_NONCE, PaymentEventStream.SOURCE_GOOGLE_PAY, payload);
+  }
+
+  private void onNonceRequestFailure(GooglePayRequest request, ErrorHandlerUtils.ErrorPayload error) {
+    // Idle before Dart hears about the outcome, so it can request another nonce right away.
+    flowState.moveTo(PaymentFlowState.State.IDLE);
+    Object payload = getCallbackErrorPayload(request, error);
+    if (request.result != null) {
+      error.sendTo(request.result);
+    } else {
+      eventDispatcher.send("onGooglePayNonceRequestFailure", payload);
+    }
+    paymentEventStream.emit(PaymentEventStream.TYPE_ERROR, PaymentEventStream.SOURCE_GOOGLE_PAY, payload);
+  }
+
+  /** Registers this module's methods; the module is only created once one of them is called. */
+  public static void registerMethods(MethodCallDispatcher dispatcher, final LazyModule<GooglePayModule> module) {
+    dispatcher.register("initializeGooglePay", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().initializeGooglePay(
+            MethodCallDispatcher.requireString(call, "squareLocationId"),
+            MethodCallDispatcher.requireInt(call, "environment"));
+        result.success(null);
+      }
+    });
+    dispatcher.register("canUseGooglePay", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().canUseGooglePay(result);
+      }
+    });
+    dispatcher.register("setGooglePayRetryPolicy", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        GooglePayNonceExchanger.Policy defaults = GooglePayNonceExchanger.Policy.DEFAULT;
+        Integer maxAttempts = MethodCallDispatcher.optionalInt(call, "maxAttempts");
+        Long initialBackoffMs = MethodCallDispatcher.optionalLong(call, "initialBackoffMs");
+        Long maxBackoffMs = MethodCallDispatcher.optionalLong(call, "maxBackoffMs");
+        Integer failureThreshold = MethodCallDispatcher.optionalInt(call, "circuitBreakerFailureThreshold");
+        Long openMs = MethodCallDispatcher.optionalLong(call, "circuitBreakerOpenMs");
+        module.get().setRetryPolicy(new GooglePayNonceExchanger.Policy(
+            maxAttempts != null ? maxAttempts : defaults.maxAttempts,
+            initialBackoffMs != null ? initialBackoffMs : defaults.initialBackoffMs,
+            maxBackoffMs != null ? maxBackoffMs : defaults.maxBackoffMs,
+            MethodCallDispatcher.optionalBoolean(call, "hedgeRequests"),
+            failureThreshold != null ? failureThreshold : defaults.circuitBreakerFailureThreshold,
+            openMs != null ? openMs : defaults.circuitBreakerOpenMs));
+        result.success(null);
+      }
+    });
+    dispatcher.registerOnMainThread("requestGooglePayNonce", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        module.get().requestGooglePayNonce(result,
+            MethodCallDispatcher.requireString(call, "price"),
+            MethodCallDispatcher.requireString(call, "currencyCode"),
+            MethodCallDispatcher.requireInt(call, "priceStatus"),
+            MethodCallDispatcher.optionalInt(call, "requestId"),
+            MethodCallDispatcher.optionalBoolean(call, "awaitResult"));
       }
     });
   }
 
-  public void initializeGooglePay(String squareLocationId, int environment) {
-    this.squareLocationId = squareLocationId;
+  private void setRetryPolicy(GooglePayNonceExchanger.Policy policy) {
+    nonceExchanger.setPolicy(policy);
+  }
+
+  public void setUseBinaryCodec(boolean useBinaryCodec) {
+    this.useBinaryCodec = useBinaryCodec;
+  }
 
-    googlePayClients = Wallet.getPaymentsClient(
-        currentActivity,
-        (new Wallet.WalletOptions.Builder())
-            .setEnvironment(environment)
-            .build()
-    );
+  public void initializeGooglePay(String squareLocationId, int environment) {
+    Configuration current = configuration;
+    if (current != null
+        && squareLocationId.equals(current.squareLocationId)
+        && environment == current.environment) {
+      return;
+    }
+    // The application context keeps the client, and the cached configuration, from leaking an activity.
+    GooglePaySdk.Client paymentsClient = googlePaySdk.createClient(applicationContext, environment);
+    Configuration newConfiguration = new Configuration(squareLocationId, environment, paymentsClient);
+    configuration = newConfiguration;
+    // Prefetch readiness so the first canUseGooglePay call doesn't wait on Play Services.
+    getReadyToPayTask(newConfiguration);
   }
 
   public void canUseGooglePay(final MethodChannel.Result result) {
-    if (googlePayClients == null) {
-      result.error(ErrorHandlerUtils.USAGE_ERROR,
-          ErrorHandlerUtils.getPluginErrorMessage(FL_GOOGLE_PAY_NOT_INITIALIZED),
-          ErrorHandlerUtils.getDebugErrorObject(FL_GOOGLE_PAY_NOT_INITIALIZED, FL_MESSAGE_GOOGLE_PAY_NOT_INITIALIZED));
+    Configuration configuration = this.configuration;
+    if (configuration == null) {
+      GOOGLE_PAY_NOT_INITIALIZED.sendTo(result);
       return;
     }
-    IsReadyToPayRequest isReadyToPayRequest = GooglePay.createIsReadyToPayRequest();
-    googlePayClients.isReadyToPay(isReadyToPayRequest).addOnCompleteListener(new OnCompleteListener<Boolean>() {
+    Task<Boolean> task = getReadyToPayTask(configuration);
+    if (task.isComplete()) {
+      result.success(task.isSuccessful());
+      return;
+    }
+    task.addOnCompleteListener(new OnCompleteListener<Boolean>() {
       @Override
       public void onComplete(Task<Boolean> task) {
         result.success(task.isSuccessful());
@@ -121,25 +288,157 @@ final public class GooglePayModule {
     });
   }
 
-  public void requestGooglePayNonce(MethodChannel.Result result, String price, String currencyCode, int priceStatus) {
-    if (googlePayClients == null) {
-      result.error(ErrorHandlerUtils.USAGE_ERROR,
-          ErrorHandlerUtils.getPluginErrorMessage(FL_GOOGLE_PAY_NOT_INITIALIZED),
-          ErrorHandlerUtils.getDebugErrorObject(FL_GOOGLE_PAY_NOT_INITIALIZED, FL_MESSAGE_GOOGLE_PAY_NOT_INITIALIZED));
+  private synchronized Task<Boolean> getReadyToPayTask(Configuration configuration) {
+    long nowMs = clock.millis();
+    boolean expired = readyToPayTask != null
+        && readyToPayTask.isComplete()
+        && (!readyToPayTask.isSuccessful() || nowMs - readyToPayTaskStartedAtMs > READY_TO_PAY_CACHE_TTL_MS);
+    if (readyToPayTask == null || expired || readyToPayConfiguration != configuration) {
+      IsReadyToPayRequest isReadyToPayRequest = googlePaySdk.createIsReadyToPayRequest();
+      final long readyToPayStartNanos = PerformanceMetrics.startTimer();
+      readyToPayTask = configuration.paymentsClient.isReadyToPay(isReadyToPayRequest);
+      readyToPayTask.addOnCompleteListener(new OnCompleteListener<Boolean>() {
+        @Override
+        public void onComplete(Task<Boolean> task) {
+          performanceMetrics.record(PerformanceMetrics.PHASE_GOOGLE_PAY_READY_TO_PAY, readyToPayStartNanos);
+        }
+      });
+      readyToPayTaskStartedAtMs = nowMs;
+      readyToPayConfiguration = configuration;
+    }
+    return readyToPayTask;
+  }
+
+  public void requestGooglePayNonce(MethodChannel.Result result, String price, String currencyCode, int priceStatus, Integer requestId, boolean awaitResult) {
+    Configuration configuration = this.configuration;
+    if (configuration == null) {
+      GOOGLE_PAY_NOT_INITIALIZED.sendTo(result);
+      return;
+    }
+    Activity currentActivity = activityProvider.getActivity();
+    if (currentActivity == null) {
+      ErrorHandlerUtils.NO_ACTIVITY.sendTo(result);
+      return;
+    }
+    if (!flowState.tryStart()) {
+      GOOGLE_PAY_ALREADY_IN_PROGRESS.sendTo(result);
       return;
     }
-    AutoResolveHelper.resolveTask(
-        googlePayClients.loadPaymentData(createPaymentChargeRequest(squareLocationId, price, currencyCode, priceStatus)),
-        currentActivity,
-        LOAD_PAYMENT_DATA_REQUEST_CODE);
-    result.success(null);
+    try {
+      PaymentDataRequest paymentDataRequest = createPaymentChargeRequest(configuration, price, currencyCode, priceStatus);
+      // In awaitResult mode the call's result is completed with the nonce, error or cancellation.
+      int requestCode = registerPendingRequest(new GooglePayRequest(requestId, awaitResult ? result : null));
+      configuration.paymentsClient.loadPaymentData(paymentDataRequest, currentActivity, requestCode);
+    } catch (RuntimeException e) {
+      flowState.moveTo(PaymentFlowState.State.IDLE);
+      throw e;
+    }
+    flowState.transition(PaymentFlowState.State.LAUNCHING, PaymentFlowState.State.AWAITING_NONCE);
+    if (!awaitResult) {
+      result.success(null);
+    }
+  }
+
+  /** Called when the plugin detaches from the engine, after which this module is not used again. */
+  public void release() {
+    for (Integer requestCode : pendingRequests.keySet()) {
+      activityResultRouter.unregister(requestCode);
+    }
+    pendingRequests.clear();
+    nonceExchanger.release();
+    flowState.moveTo(PaymentFlowState.State.IDLE);
   }
 
-  private PaymentDataRequest createPaymentChargeRequest(String squareLocationId, String price, String currencyCode, int priceStatus) {
+  private int registerPendingRequest(GooglePayRequest request) {
+    for (int attempt = 0; attempt < LOAD_PAYMENT_DATA_REQUEST_CODE_COUNT; attempt++) {
+      int requestCode = LOAD_PAYMENT_DATA_REQUEST_CODE_BASE
+          + (requestCodeGenerator.getAndIncrement() & (LOAD_PAYMENT_DATA_REQUEST_CODE_COUNT - 1));
+      if (pendingRequests.putIfAbsent(requestCode, request) == null) {
+        activityResultRouter.register(requestCode, loadPaymentDataResultListener);
+        return requestCode;
+      }
+    }
+    throw new IllegalStateException("Too many google pay requests in flight.");
+  }
+
+  private Object getCardDetailsPayload(GooglePayRequest request, CardDetails cardDetails) {
+    if (useBinaryCodec) {
+      return cardDetailsConverter.toByteArray(cardDetails, request.requestId != null ? request.requestId : 0);
+    }
+    Map<String, Object> mapToReturn = cardDetailsConverter.toMapObject(cardDetails);
+    if (request.requestId != null) {
+      mapToReturn.put("requestId", request.requestId);
+    }
+    return mapToReturn;
+  }
+
+  private Object getCallbackErrorPayload(GooglePayRequest request, ErrorHandlerUtils.ErrorPayload error) {
+    if (useBinaryCodec) {
+      return BinaryCodec.encodeErrorInfo(request.requestId != null ? request.requestId : 0,
+          error.getCode(), error.getMessage(), error.getDebugCode(), error.getDebugMessage());
+    }
+    if (request.requestId == null) {
+      return error.getCallbackErrorObject();
+    }
+    // The error object is shared by every occurrence, so the request id goes in an envelope around it.
+    Map<String, Object> envelope = new LinkedHashMap<>(2);
+    envelope.put("requestId", request.requestId);
+    envelope.put("error", error.getCallbackErrorObject());
+    return envelope;
+  }
+
+  private Object getCancelPayload(GooglePayRequest request) {
+    if (request.requestId == null) {
+      return null;
+    }
+    Map<String, Object> cancelObject = new LinkedHashMap<>();
+    cancelObject.put("requestId", request.requestId);
+    return cancelObject;
+  }
+
+  private PaymentDataRequest createPaymentChargeRequest(Configuration configuration, String price, String currencyCode, int priceStatus) {
+    // Requests are immutable, so a retry or repeated tap for the same amount reuses the built one.
+    String cacheKey = configuration.environment + "|" + configuration.squareLocationId + "|" + currencyCode + "|" + priceStatus + "|" + price;
+    synchronized (paymentDataRequestCache) {
+      PaymentDataRequest paymentDataRequest = paymentDataRequestCache.get(cacheKey);
+      if (paymentDataRequest == null) {
+        paymentDataRequest = buildPaymentChargeRequest(configuration.squareLocationId, price, currencyCode, priceStatus);
+        paymentDataRequestCache.put(cacheKey, paymentDataRequest);
+      }
+      return paymentDataRequest;
+    }
+  }
+
+  private PaymentDataRequest buildPaymentChargeRequest(String squareLocationId, String price, String currencyCode, int priceStatus) {
     TransactionInfo transactionInfo = TransactionInfo.newBuilder()
         .setTotalPriceStatus(priceStatus)
         .setTotalPrice(price)
         .setCurrencyCode(currencyCode).build();
-    return GooglePay.createPaymentDataRequest(squareLocationId, transactionInfo);
+    return googlePaySdk.createPaymentDataRequest(squareLocationId, transactionInfo);
+  }
+
+  /** Immutable google pay settings, replaced as a whole by initializeGooglePay. */
+  private static final class Configuration {
+    final String squareLocationId;
+    final int environment;
+    final GooglePaySdk.Client paymentsClient;
+
+    Configuration(String squareLocationId, int environment, GooglePaySdk.Client paymentsClient) {
+      this.squareLocationId = squareLocationId;
+      this.environment = environment;
+      this.paymentsClient = paymentsClient;
+    }
+  }
+
+  private static final class GooglePayRequest {
+    // Id chosen by the Dart caller, echoed back in every callback for this request.
+    final Integer requestId;
+    // Set when the outcome is returned through the original method call instead of callbacks.
+    final MethodChannel.Result result;
+
+    GooglePayRequest(Integer requestId, MethodChannel.Result result) {
+      this.requestId = requestId;
+      this.result = result;
+    }
   }
 }
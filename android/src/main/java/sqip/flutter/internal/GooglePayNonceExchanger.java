@@ -0,0 +1,252 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import sqip.Callback;
+import sqip.CardDetails;
+import sqip.GooglePayNonceResult;
+
+/**
+ * Exchanges a Google Pay token for a nonce. Network errors are retried with jittered exponential
+ * backoff, a slow request can optionally be hedged with a second one once it passes the observed
+ * p95 latency, and a circuit breaker fails requests fast after repeated network errors.
+ *
+ * <p>Retries and hedges send the same token again. Hedging is off unless the app turns it on
+ * with setGooglePayRetryPolicy. When both attempts succeed, Dart only gets the first nonce, and the
+ * other is never charged and expires. If the backend rejects a token it has already seen, that
+ * error is ignored while the other attempt is still in flight.
+ *
+ * <p>Main thread only, which is where the activity result and the SDK callbacks arrive.
+ */
+final class GooglePayNonceExchanger {
+  private static final String RETRYABLE_ERROR_CODE = "NO_NETWORK";
+  private static final double HEDGE_PERCENTILE = 0.95;
+  // Fewer samples don't say much about the tail.
+  private static final long MIN_HEDGE_SAMPLES = 20;
+
+  /** Sends one nonce request for a token, see {@link GooglePaySdk#DEFAULT}. */
+  interface NonceRequester {
+    /** Calls {@code callback} on the main thread. */
+    void requestNonce(String googlePayToken, Callback<GooglePayNonceResult> callback);
+  }
+
+  interface Listener {
+    void onSuccess(CardDetails cardDetails);
+
+    void onFailure(ErrorHandlerUtils.ErrorPayload error);
+  }
+
+  static final class Policy {
+    static final Policy DEFAULT = new Policy(3, 200, 2000, false, 5, TimeUnit.SECONDS.toMillis(30));
+
+    final int maxAttempts;
+    final long initialBackoffMs;
+    final long maxBackoffMs;
+    final boolean hedgeRequests;
+    final int circuitBreakerFailureThreshold;
+    final long circuitBreakerOpenMs;
+
+    Policy(int maxAttempts, long initialBackoffMs, long maxBackoffMs, boolean hedgeRequests,
+        int circuitBreakerFailureThreshold, long circuitBreakerOpenMs) {
+      this.maxAttempts = Math.max(maxAttempts, 1);
+      this.initialBackoffMs = Math.max(initialBackoffMs, 0);
+      this.maxBackoffMs = Math.max(maxBackoffMs, this.initialBackoffMs);
+      this.hedgeRequests = hedgeRequests;
+      this.circuitBreakerFailureThreshold = Math.max(circuitBreakerFailureThreshold, 1);
+      this.circuitBreakerOpenMs = Math.max(circuitBreakerOpenMs, 0);
+    }
+  }
+
+  private final PerformanceMetrics performanceMetrics;
+  private final NonceRequester nonceRequester;
+  private final MainThread mainThread;
+  private final Clock clock;
+  private final Random random;
+  private volatile Policy policy;
+  // Main thread only.
+  private final List<Runnable> scheduledTasks;
+  private int consecutiveFailures;
+  private long circuitOpenUntilMs;
+  private ErrorHandlerUtils.ErrorPayload lastFailure;
+  private boolean released;
+
+  GooglePayNonceExchanger(PerformanceMetrics performanceMetrics, NonceRequester nonceRequester,
+      MainThread mainThread, Clock clock, Random random) {
+    this.performanceMetrics = performanceMetrics;
+    this.nonceRequester = nonceRequester;
+    this.mainThread = mainThread;
+    this.clock = clock;
+    this.random = random;
+    policy = Policy.DEFAULT;
+    scheduledTasks = new ArrayList<>();
+  }
+
+  void setPolicy(Policy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Cancels the pending retries and hedges. Results that arrive afterwards are dropped, and
+   * exchanges started afterwards never call their listener.
+   */
+  void release() {
+    released = true;
+    for (Runnable task : scheduledTasks) {
+      mainThread.removeCallbacks(task);
+    }
+    scheduledTasks.clear();
+  }
+
+  void exchange(String googlePayToken, Listener listener) {
+    if (released) {
+      return;
+    }
+    if (isCircuitOpen()) {
+      // The backend was unreachable moments ago, so fail with that error instead of waiting on it again.
+      listener.onFailure(lastFailure);
+      return;
+    }
+    new Exchange(googlePayToken, listener, policy).start();
+  }
+
+  private boolean isCircuitOpen() {
+    return clock.millis() < circuitOpenUntilMs;
+  }
+
+  private void schedule(final Runnable task, long delayMs) {
+    Runnable scheduledTask = new Runnable() {
+      @Override
+      public void run() {
+        scheduledTasks.remove(this);
+        task.run();
+      }
+    };
+    scheduledTasks.add(scheduledTask);
+    mainThread.postDelayed(scheduledTask, delayMs);
+  }
+
+  private void recordSuccess() {
+    consecutiveFailures = 0;
+    circuitOpenUntilMs = 0;
+  }
+
+  private void recordNetworkFailure(ErrorHandlerUtils.ErrorPayload error, Policy policy) {
+    lastFailure = error;
+    consecutiveFailures++;
+    // Once open, the first request after the open period is the trial: one more failure reopens it.
+    if (consecutiveFailures >= policy.circuitBreakerFailureThreshold) {
+      circuitOpenUntilMs = clock.millis() + policy.circuitBreakerOpenMs;
+    }
+  }
+
+  private final class Exchange {
+    private final String googlePayToken;
+    private final Listener listener;
+    private final Policy policy;
+    private int attempts;
+    private int attemptsInFlight;
+    private boolean done;
+
+    Exchange(String googlePayToken, Listener listener, Policy policy) {
+      this.googlePayToken = googlePayToken;
+      this.listener = listener;
+      this.policy = policy;
+    }
+
+    void start() {
+      sendAttempt();
+      if (!policy.hedgeRequests || policy.maxAttempts < 2) {
+        return;
+      }
+      double hedgeDelayMs = performanceMetrics.getPercentileMillis(
+          PerformanceMetrics.PHASE_GOOGLE_PAY_NONCE_REQUEST, HEDGE_PERCENTILE, MIN_HEDGE_SAMPLES);
+      if (hedgeDelayMs >= 0) {
+        schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (!done && attemptsInFlight > 0 && attempts == 1) {
+              sendAttempt();
+            }
+          }
+        }, (long) Math.ceil(hedgeDelayMs));
+      }
+    }
+
+    private void sendAttempt() {
+      attempts++;
+      attemptsInFlight++;
+      final long startNanos = PerformanceMetrics.startTimer();
+      nonceRequester.requestNonce(googlePayToken, new Callback<GooglePayNonceResult>() {
+        @Override public void onResult(GooglePayNonceResult googlePayNonceResult) {
+          performanceMetrics.record(PerformanceMetrics.PHASE_GOOGLE_PAY_NONCE_REQUEST, startNanos);
+          attemptsInFlight--;
+          if (released) {
+            return;
+          }
+          onAttemptResult(googlePayNonceResult);
+        }
+      });
+    }
+
+    private void onAttemptResult(GooglePayNonceResult googlePayNonceResult) {
+      if (done) {
+        // A hedged attempt that lost the race.
+        return;
+      }
+      if (googlePayNonceResult.isSuccess()) {
+        done = true;
+        recordSuccess();
+        listener.onSuccess(googlePayNonceResult.getSuccessValue());
+        return;
+      }
+      if (!googlePayNonceResult.isError()) {
+        return;
+      }
+      GooglePayNonceResult.Error error = (GooglePayNonceResult.Error) googlePayNonceResult;
+      ErrorHandlerUtils.ErrorPayload sdkError = ErrorHandlerUtils.createSdkError(
+          error.getCode().name(), error.getMessage(), error.getDebugCode(), error.getDebugMessage());
+      boolean retryable = RETRYABLE_ERROR_CODE.equals(error.getCode().name());
+      if (retryable) {
+        recordNetworkFailure(sdkError, policy);
+      }
+      if (attemptsInFlight > 0) {
+        // The other attempt may still succeed.
+        return;
+      }
+      if (retryable && attempts < policy.maxAttempts && !isCircuitOpen()) {
+        schedule(new Runnable() {
+          @Override
+          public void run() {
+            sendAttempt();
+          }
+        }, getBackoffMs(attempts));
+        return;
+      }
+      done = true;
+      listener.onFailure(sdkError);
+    }
+
+    private long getBackoffMs(int attempt) {
+      // Full jitter: a random delay up to the exponential backoff, so clients don't retry in lockstep.
+      long backoffMs = Math.min(policy.maxBackoffMs, policy.initialBackoffMs << Math.min(attempt - 1, 20));
+      return (long) (random.nextDouble() * backoffMs);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.wallet.AutoResolveHelper;
+import com.google.android.gms.wallet.IsReadyToPayRequest;
+import com.google.android.gms.wallet.PaymentData;
+import com.google.android.gms.wallet.PaymentDataRequest;
+import com.google.android.gms.wallet.PaymentsClient;
+import com.google.android.gms.wallet.TransactionInfo;
+import com.google.android.gms.wallet.Wallet;
+import sqip.Callback;
+import sqip.GooglePay;
+import sqip.GooglePayNonceResult;
+
+/**
+ * The Google Pay entry points of the In-App Payments SDK and Play Services, so the JVM tests can
+ * stand in a fake.
+ */
+interface GooglePaySdk extends GooglePayNonceExchanger.NonceRequester {
+  GooglePaySdk DEFAULT = new GooglePaySdk() {
+    @Override public Client createClient(Context applicationContext, int environment) {
+      final PaymentsClient paymentsClient = Wallet.getPaymentsClient(
+          applicationContext,
+          (new Wallet.WalletOptions.Builder())
+              .setEnvironment(environment)
+              .build()
+      );
+      return new Client() {
+        @Override public Task<Boolean> isReadyToPay(IsReadyToPayRequest request) {
+          return paymentsClient.isReadyToPay(request);
+        }
+
+        @Override public void loadPaymentData(PaymentDataRequest request, Activity activity, int requestCode) {
+          AutoResolveHelper.resolveTask(paymentsClient.loadPaymentData(request), activity, requestCode);
+        }
+      };
+    }
+
+    @Override public IsReadyToPayRequest createIsReadyToPayRequest() {
+      return GooglePay.createIsReadyToPayRequest();
+    }
+
+    @Override public PaymentDataRequest createPaymentDataRequest(String squareLocationId,
+        TransactionInfo transactionInfo) {
+      return GooglePay.createPaymentDataRequest(squareLocationId, transactionInfo);
+    }
+
+    @Override public String getGooglePayToken(Intent data) {
+      PaymentData paymentData = data != null ? PaymentData.getFromIntent(data) : null;
+      if (paymentData == null || paymentData.getPaymentMethodToken() == null) {
+        return null;
+      }
+      return paymentData.getPaymentMethodToken().getToken();
+    }
+
+    @Override public void requestNonce(String googlePayToken, Callback<GooglePayNonceResult> callback) {
+      GooglePay.requestGooglePayNonce(googlePayToken).enqueue(callback);
+    }
+  };
+
+  /** A Play Services payments client for one environment. */
+  interface Client {
+    Task<Boolean> isReadyToPay(IsReadyToPayRequest request);
+
+    /** Shows the Google Pay sheet, whose result comes back to the activity with {@code requestCode}. */
+    void loadPaymentData(PaymentDataRequest request, Activity activity, int requestCode);
+  }
+
+  /** The client keeps {@code applicationContext}, never an activity. */
+  Client createClient(Context applicationContext, int environment);
+
+  IsReadyToPayRequest createIsReadyToPayRequest();
+
+  PaymentDataRequest createPaymentDataRequest(String squareLocationId, TransactionInfo transactionInfo);
+
+  /** Returns the payment method token of a Google Pay activity result, or null if it has none. */
+  String getGooglePayToken(Intent data);
+}
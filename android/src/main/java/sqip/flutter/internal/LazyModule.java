@@ -0,0 +1,48 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+/** Creates a module the first time one of its methods is called. */
+public abstract class LazyModule<T> {
+  private T module;
+  private boolean released;
+
+  protected abstract T create();
+
+  public synchronized T get() {
+    if (released) {
+      // A call that was already running when the plugin detached, it must not create a new module.
+      throw new IllegalStateException("The module was released.");
+    }
+    if (module == null) {
+      module = create();
+    }
+    return module;
+  }
+
+  /** Returns the module if it has been created, without creating it. */
+  public synchronized T peek() {
+    return module;
+  }
+
+  /** Returns the module if it has been created, after which {@link #get} fails. */
+  public synchronized T release() {
+    T releasedModule = module;
+    module = null;
+    released = true;
+    return releasedModule;
+  }
+}
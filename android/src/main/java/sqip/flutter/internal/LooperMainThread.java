@@ -0,0 +1,50 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/** The app's main looper. */
+public final class LooperMainThread implements MainThread {
+  public static final LooperMainThread INSTANCE = new LooperMainThread();
+
+  private final Handler handler;
+
+  private LooperMainThread() {
+    handler = new Handler(Looper.getMainLooper());
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return Looper.myLooper() == Looper.getMainLooper();
+  }
+
+  @Override
+  public void post(Runnable task) {
+    handler.post(task);
+  }
+
+  @Override
+  public void postDelayed(Runnable task, long delayMs) {
+    handler.postDelayed(task, delayMs);
+  }
+
+  @Override
+  public void removeCallbacks(Runnable task) {
+    handler.removeCallbacks(task);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+/**
+ * Runs work on the main thread. The plugin uses {@link LooperMainThread}; the JVM tests, which
+ * have no looper, stand in a thread of their own.
+ */
+public interface MainThread {
+  boolean isCurrentThread();
+
+  void post(Runnable task);
+
+  void postDelayed(Runnable task, long delayMs);
+
+  /** Removes {@code task} if it is still waiting to run. */
+  void removeCallbacks(Runnable task);
+}
@@ -0,0 +1,267 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.util.Log;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Routes method calls to handlers registered by name. All handlers are registered before the
+ * dispatcher is installed on the channel, so lookups need no synchronization.
+ *
+ * <p>Calls run in arrival order on a single background thread so they don't compete with frame
+ * rendering. Handlers registered with {@link #registerOnMainThread} are posted to the main looper
+ * from that thread, and every result is delivered on the main thread as the channel requires.
+ */
+public final class MethodCallDispatcher implements MethodChannel.MethodCallHandler {
+
+  private static final String TAG = "MethodCallDispatcher";
+
+  // Android only sqip.flutter plugin errors
+  private static final String FL_MISSING_ARGUMENT = "fl_missing_argument";
+  private static final String FL_INVALID_ARGUMENT = "fl_invalid_argument";
+  private static final String FL_UNEXPECTED_ERROR = "fl_unexpected_error";
+
+  public interface MethodHandler {
+    void onMethodCall(MethodCall call, MethodChannel.Result result);
+  }
+
+  private final Map<String, RegisteredHandler> handlers;
+  private final PerformanceMetrics performanceMetrics;
+  private final MainThread mainThread;
+  private final ExecutorService executor;
+  private volatile boolean shutdown;
+
+  public MethodCallDispatcher(PerformanceMetrics performanceMetrics) {
+    this(performanceMetrics, LooperMainThread.INSTANCE);
+  }
+
+  MethodCallDispatcher(PerformanceMetrics performanceMetrics, MainThread mainThread) {
+    handlers = new HashMap<>();
+    this.performanceMetrics = performanceMetrics;
+    this.mainThread = mainThread;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "sqip-flutter-method-calls");
+      }
+    });
+  }
+
+  /** Registers a handler that runs on the dispatcher's background thread. */
+  public void register(String method, MethodHandler handler) {
+    register(method, handler, false);
+  }
+
+  /** Registers a handler that needs the main thread, e.g. because it starts an activity. */
+  public void registerOnMainThread(String method, MethodHandler handler) {
+    register(method, handler, true);
+  }
+
+  /**
+   * Stops the background thread. Calls still queued are dropped without a reply, as the channel
+   * is gone and running them could recreate modules that were just released.
+   */
+  public void shutdown() {
+    shutdown = true;
+    executor.shutdown();
+  }
+
+  @Override
+  public void onMethodCall(final MethodCall call, MethodChannel.Result result) {
+    final RegisteredHandler registeredHandler = handlers.get(call.method);
+    if (registeredHandler == null) {
+      result.notImplemented();
+      return;
+    }
+    final MethodChannel.Result mainThreadResult = new MainThreadResult(result, mainThread);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (registeredHandler.runOnMainThread) {
+          // Posted from the background thread so it still runs after any call that arrived before it.
+          mainThread.post(new Runnable() {
+            @Override
+            public void run() {
+              invoke(registeredHandler, call, mainThreadResult);
+            }
+          });
+        } else {
+          invoke(registeredHandler, call, mainThreadResult);
+        }
+      }
+    });
+  }
+
+  private void register(String method, MethodHandler handler, boolean runOnMainThread) {
+    RegisteredHandler registeredHandler =
+        new RegisteredHandler(handler, PerformanceMetrics.PHASE_DISPATCH_PREFIX + method, runOnMainThread);
+    if (handlers.put(method, registeredHandler) != null) {
+      throw new IllegalStateException("A handler is already registered for method: " + method);
+    }
+  }
+
+  private void invoke(RegisteredHandler registeredHandler, MethodCall call, MethodChannel.Result result) {
+    if (shutdown) {
+      return;
+    }
+    long startNanos = PerformanceMetrics.startTimer();
+    try {
+      registeredHandler.handler.onMethodCall(call, result);
+    } catch (InvalidArgumentException e) {
+      result.error(ErrorHandlerUtils.USAGE_ERROR,
+          ErrorHandlerUtils.getPluginErrorMessage(e.debugCode),
+          ErrorHandlerUtils.getDebugErrorObject(e.debugCode, e.getMessage()));
+    } catch (RuntimeException e) {
+      // A bug in the plugin or the SDK. Off the main thread the engine can't catch it for us.
+      Log.e(TAG, "Unexpected error in " + call.method + ".", e);
+      result.error(ErrorHandlerUtils.USAGE_ERROR,
+          ErrorHandlerUtils.getPluginErrorMessage(FL_UNEXPECTED_ERROR),
+          ErrorHandlerUtils.getDebugErrorObject(FL_UNEXPECTED_ERROR, e.toString()));
+    } finally {
+      performanceMetrics.record(registeredHandler.phase, startNanos);
+    }
+  }
+
+  public static String requireString(MethodCall call, String key) {
+    return requireArgument(call, key, String.class);
+  }
+
+  public static boolean requireBoolean(MethodCall call, String key) {
+    return requireArgument(call, key, Boolean.class);
+  }
+
+  public static int requireInt(MethodCall call, String key) {
+    return requireArgument(call, key, Number.class).intValue();
+  }
+
+  public static boolean optionalBoolean(MethodCall call, String key) {
+    Boolean value = optionalArgument(call, key, Boolean.class);
+    return value != null && value;
+  }
+
+  public static String optionalString(MethodCall call, String key) {
+    return optionalArgument(call, key, String.class);
+  }
+
+  public static Integer optionalInt(MethodCall call, String key) {
+    Number value = optionalArgument(call, key, Number.class);
+    return value != null ? value.intValue() : null;
+  }
+
+  public static Long optionalLong(MethodCall call, String key) {
+    Number value = optionalArgument(call, key, Number.class);
+    return value != null ? value.longValue() : null;
+  }
+
+  private static <T> T requireArgument(MethodCall call, String key, Class<T> type) {
+    T value = optionalArgument(call, key, type);
+    if (value == null) {
+      throw new InvalidArgumentException(FL_MISSING_ARGUMENT,
+          "Missing required argument '" + key + "' for method " + call.method + ".");
+    }
+    return value;
+  }
+
+  private static <T> T optionalArgument(MethodCall call, String key, Class<T> type) {
+    Object value = call.argument(key);
+    if (value != null && !type.isInstance(value)) {
+      throw new InvalidArgumentException(FL_INVALID_ARGUMENT,
+          "Argument '" + key + "' for method " + call.method + " should be a " + type.getSimpleName() + ".");
+    }
+    return type.cast(value);
+  }
+
+  private static final class RegisteredHandler {
+    final MethodHandler handler;
+    // Metrics phase name, built once at registration so dispatch doesn't allocate it.
+    final String phase;
+    final boolean runOnMainThread;
+
+    RegisteredHandler(MethodHandler handler, String phase, boolean runOnMainThread) {
+      this.handler = handler;
+      this.phase = phase;
+      this.runOnMainThread = runOnMainThread;
+    }
+  }
+
+  /** Delivers a result on the main thread, directly when already there. */
+  private static final class MainThreadResult implements MethodChannel.Result {
+    private final MethodChannel.Result result;
+    private final MainThread mainThread;
+
+    MainThreadResult(MethodChannel.Result result, MainThread mainThread) {
+      this.result = result;
+      this.mainThread = mainThread;
+    }
+
+    @Override
+    public void success(final Object value) {
+      if (mainThread.isCurrentThread()) {
+        result.success(value);
+        return;
+      }
+      mainThread.post(new Runnable() {
+        @Override
+        public void run() {
+          result.success(value);
+        }
+      });
+    }
+
+    @Override
+    public void error(final String errorCode, final String errorMessage, final Object errorDetails) {
+      if (mainThread.isCurrentThread()) {
+        result.error(errorCode, errorMessage, errorDetails);
+        return;
+      }
+      mainThread.post(new Runnable() {
+        @Override
+        public void run() {
+          result.error(errorCode, errorMessage, errorDetails);
+        }
+      });
+    }
+
+    @Override
+    public void notImplemented() {
+      if (mainThread.isCurrentThread()) {
+        result.notImplemented();
+        return;
+      }
+      mainThread.post(new Runnable() {
+        @Override
+        public void run() {
+          result.notImplemented();
+        }
+      });
+    }
+  }
+
+  private static final class InvalidArgumentException extends IllegalArgumentException {
+    private final String debugCode;
+
+    InvalidArgumentException(String debugCode, String message) {
+      super(message);
+      this.debugCode = debugCode;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Context;
+import android.util.Log;
+import io.flutter.plugin.common.MethodChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import sqip.CardDetails;
+import sqip.flutter.internal.converter.CardConverter;
+import sqip.flutter.internal.converter.CardDetailsConverter;
+
+/**
+ * Optional journal of nonces handed to Dart but not yet acknowledged, so they survive the
+ * process dying before the app's backend charges them.
+ *
+ * <p>The journal is a memory-mapped file of fixed-size records appended in order. A record's
+ * state byte is written last, so a write torn by a crash leaves an empty slot behind. Writes to
+ * the mapping reach the page cache immediately and outlive the process without an fsync.
+ * Acknowledged and expired records are dropped by compacting into a temporary file that is
+ * synced and renamed over the journal. All file work runs on the journal's own thread.
+ *
+ * <p>The journal is a {@link SharedStore}, as engines with their own journal would map the same
+ * file and overwrite each other's records. Enabling it from one engine enables it for all of them.
+ */
+public final class NonceJournal extends SharedStore {
+  private static final String TAG = "NonceJournal";
+  private static final String FILE_NAME = "sqip_flutter_nonce_journal";
+
+  public static final int SOURCE_CARD_ENTRY = 1;
+  public static final int SOURCE_GOOGLE_PAY = 2;
+
+  private static final byte STATE_EMPTY = 0;
+  private static final byte STATE_PENDING = 1;
+  private static final byte STATE_ACKNOWLEDGED = 2;
+
+  // state (1) + source (1) + obtained at millis (8) + payload length (2) + payload
+  private static final int RECORD_SIZE = 256;
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int MAX_PAYLOAD_SIZE = RECORD_SIZE - RECORD_HEADER_SIZE;
+  private static final int RECORD_COUNT = 128;
+  // Square expires unused nonces after 24 hours, so older records can't be charged anyway.
+  private static final long RECORD_TTL_MS = TimeUnit.HOURS.toMillis(24);
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final References<NonceJournal> REFERENCES = new References<NonceJournal>() {
+    @Override protected NonceJournal create(Context applicationContext) {
+      return new NonceJournal(new File(applicationContext.getFilesDir(), FILE_NAME), Clock.WALL);
+    }
+  };
+
+  private final File file;
+  private final Clock clock;
+  private final CardDetailsConverter cardDetailsConverter;
+  private volatile boolean enabled;
+  // Journal thread only.
+  private FileChannel fileChannel;
+  private MappedByteBuffer mappedBuffer;
+  private int appendIndex;
+
+  /** Returns the process's journal, call {@link #release} once done with it. */
+  public static NonceJournal acquire(Context applicationContext) {
+    return REFERENCES.acquire(applicationContext);
+  }
+
+  NonceJournal(File file, Clock clock) {
+    super(TAG, "sqip-flutter-nonce-journal");
+    this.file = file;
+    this.clock = clock;
+    cardDetailsConverter = new CardDetailsConverter(new CardConverter());
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Records a nonce that was just handed to Dart, when the journal is enabled. */
+  public void append(final int source, final CardDetails cardDetails) {
+    if (!enabled) {
+      return;
+    }
+    final long obtainedAtMs = clock.millis();
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          appendRecord(source, obtainedAtMs, cardDetailsConverter.toByteArray(cardDetails, 0));
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to journal nonce.", e);
+        }
+      }
+    });
+  }
+
+  /** Marks the nonce as handled, so it is no longer recovered. */
+  public void acknowledge(final String nonce) {
+    if (nonce == null) {
+      return;
+    }
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          acknowledgeRecord(nonce);
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to acknowledge journaled nonce.", e);
+        }
+      }
+    });
+  }
+
+  /** Completes {@code result} with every unacknowledged, unexpired record, oldest first. */
+  public void recover(final MethodChannel.Result result) {
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.success(recoverRecords());
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to read the nonce journal.", e);
+          result.success(new ArrayList<>());
+        }
+      }
+    });
+  }
+
+  @Override
+  void close() {
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        closeFile();
+      }
+    });
+    super.close();
+  }
+
+  private void appendRecord(int source, long obtainedAtMs, byte[] payload) throws IOException {
+    if (payload.length > MAX_PAYLOAD_SIZE) {
+      Log.w(TAG, "Card details are too large to journal.");
+      return;
+    }
+    openFile();
+    if (appendIndex == RECORD_COUNT) {
+      compact();
+      if (appendIndex == RECORD_COUNT) {
+        Log.w(TAG, "Nonce journal is full of unacknowledged nonces.");
+        return;
+      }
+    }
+    int offset = appendIndex * RECORD_SIZE;
+    mappedBuffer.put(offset + 1, (byte) source);
+    mappedBuffer.putLong(offset + 2, obtainedAtMs);
+    mappedBuffer.putShort(offset + 10, (short) payload.length);
+    for (int i = 0; i < payload.length; i++) {
+      mappedBuffer.put(offset + RECORD_HEADER_SIZE + i, payload[i]);
+    }
+    mappedBuffer.put(offset, STATE_PENDING);
+    appendIndex++;
+  }
+
+  private void acknowledgeRecord(String nonce) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    openFile();
+    for (int index = 0; index < appendIndex; index++) {
+      int offset = index * RECORD_SIZE;
+      if (mappedBuffer.get(offset) == STATE_PENDING && nonce.equals(readNonce(offset))) {
+        mappedBuffer.put(offset, STATE_ACKNOWLEDGED);
+      }
+    }
+  }
+
+  private List<Object> recoverRecords() throws IOException {
+    List<Object> records = new ArrayList<>();
+    if (!file.exists()) {
+      return records;
+    }
+    openFile();
+    compact();
+    for (int index = 0; index < appendIndex; index++) {
+      int offset = index * RECORD_SIZE;
+      Map<String, Object> record = new LinkedHashMap<>(4);
+      record.put("source", (int) mappedBuffer.get(offset + 1));
+      record.put("obtainedAt", mappedBuffer.getLong(offset + 2));
+      record.put("cardDetails", readPayload(offset));
+      records.add(record);
+    }
+    return records;
+  }
+
+  private void openFile() throws IOException {
+    if (mappedBuffer != null) {
+      return;
+    }
+    fileChannel = new RandomAccessFile(file, "rw").getChannel();
+    mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, RECORD_COUNT * RECORD_SIZE);
+    // Records are only ever appended, so the first empty slot ends the journal.
+    appendIndex = 0;
+    while (appendIndex < RECORD_COUNT && mappedBuffer.get(appendIndex * RECORD_SIZE) != STATE_EMPTY) {
+      appendIndex++;
+    }
+  }
+
+  private void closeFile() {
+    if (fileChannel == null) {
+      return;
+    }
+    try {
+      fileChannel.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close the nonce journal.", e);
+    }
+    fileChannel = null;
+    mappedBuffer = null;
+  }
+
+  private void compact() throws IOException {
+    long expiredBeforeMs = clock.millis() - RECORD_TTL_MS;
+    ByteBuffer compacted = ByteBuffer.allocate(RECORD_COUNT * RECORD_SIZE);
+    int keptCount = 0;
+    for (int index = 0; index < appendIndex; index++) {
+      int offset = index * RECORD_SIZE;
+      if (mappedBuffer.get(offset) != STATE_PENDING || mappedBuffer.getLong(offset + 2) < expiredBeforeMs) {
+        continue;
+      }
+      for (int i = 0; i < RECORD_SIZE; i++) {
+        compacted.put(keptCount * RECORD_SIZE + i, mappedBuffer.get(offset + i));
+      }
+      keptCount++;
+    }
+    if (keptCount == appendIndex) {
+      return;
+    }
+
+    File compactedFile = new File(file.getPath() + ".tmp");
+    RandomAccessFile output = new RandomAccessFile(compactedFile, "rw");
+    try {
+      output.getChannel().write(compacted);
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+    closeFile();
+    if (!compactedFile.renameTo(file)) {
+      throw new IOException("Failed to replace the nonce journal.");
+    }
+    openFile();
+  }
+
+  private String readNonce(int offset) {
+    // The payload is a BinaryCodec card details record: tag, request id, then the nonce.
+    int nonceOffset = offset + RECORD_HEADER_SIZE + 5;
+    int length = mappedBuffer.getShort(nonceOffset) & 0xFFFF;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = mappedBuffer.get(nonceOffset + 2 + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  private byte[] readPayload(int offset) {
+    int length = mappedBuffer.getShort(offset + 10) & 0xFFFF;
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = mappedBuffer.get(offset + RECORD_HEADER_SIZE + i);
+    }
+    return payload;
+  }
+}
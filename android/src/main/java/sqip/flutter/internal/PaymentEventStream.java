@@ -0,0 +1,93 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.EventChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Feeds payment outcomes to the Dart payment event stream. Events emitted while Dart isn't
+ * listening are kept in a bounded buffer, dropping the oldest, and replayed to the next listener.
+ * Nonce events are not buffered: by the time a listener arrives, the nonce may already have been
+ * charged through its callback, or have expired.
+ */
+public final class PaymentEventStream implements EventChannel.StreamHandler {
+  public static final String CHANNEL_NAME = "square_in_app_payments/payment_events";
+
+  public static final String TYPE_CARD_DETAILS = "cardDetails";
+  public static final String TYPE_GOOGLE_PAY_NONCE = "googlePayNonce";
+  public static final String TYPE_ERROR = "error";
+  public static final String TYPE_CANCEL = "cancel";
+  public static final String TYPE_COMPLETE = "complete";
+
+  public static final String SOURCE_CARD_ENTRY = "cardEntry";
+  public static final String SOURCE_GOOGLE_PAY = "googlePay";
+
+  private static final int MAX_BUFFERED_EVENTS = 32;
+
+  private final EventDispatcher eventDispatcher;
+  // Main thread only.
+  private final ArrayDeque<Map<String, Object>> bufferedEvents;
+  private EventChannel.EventSink eventSink;
+
+  public PaymentEventStream(EventDispatcher eventDispatcher) {
+    this.eventDispatcher = eventDispatcher;
+    bufferedEvents = new ArrayDeque<>();
+  }
+
+  /**
+   * Emits an event from any thread, after the channel events sent before it. It doesn't split
+   * the dispatcher's batch, so it may also follow channel events sent just after it.
+   */
+  public void emit(final String type, String source, Object payload) {
+    final Map<String, Object> event = new HashMap<>(4);
+    event.put("type", type);
+    event.put("source", source);
+    event.put("payload", payload);
+    eventDispatcher.runAfterBatch(new Runnable() {
+      @Override
+      public void run() {
+        if (eventSink != null) {
+          eventSink.success(event);
+          return;
+        }
+        if (TYPE_CARD_DETAILS.equals(type) || TYPE_GOOGLE_PAY_NONCE.equals(type)) {
+          return;
+        }
+        if (bufferedEvents.size() == MAX_BUFFERED_EVENTS) {
+          bufferedEvents.removeFirst();
+        }
+        bufferedEvents.addLast(event);
+      }
+    });
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    eventSink = events;
+    Map<String, Object> event;
+    while ((event = bufferedEvents.pollFirst()) != null) {
+      events.success(event);
+    }
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    eventSink = null;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Where a card entry or Google Pay flow is, so only one of each runs at a time. Only an idle
+ * flow can be started, which makes a double tap's second start call fail fast.
+ */
+public final class PaymentFlowState {
+  public enum State {
+    IDLE,
+    LAUNCHING,
+    AWAITING_NONCE,
+    PROCESSING,
+    CLOSING
+  }
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+
+  /** Moves an idle flow to {@link State#LAUNCHING}, returns false if a flow is already active. */
+  public boolean tryStart() {
+    return state.compareAndSet(State.IDLE, State.LAUNCHING);
+  }
+
+  /** Moves the flow to {@code to} only if it is still in {@code from}. */
+  public boolean transition(State from, State to) {
+    return state.compareAndSet(from, to);
+  }
+
+  public void moveTo(State to) {
+    state.set(to);
+  }
+
+  public State get() {
+    return state.get();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import sqip.flutter.PerformanceListener;
+
+/** Lock-free latency histograms for the plugin's hot paths, keyed by phase name. */
+public final class PerformanceMetrics {
+  public static final String PHASE_DISPATCH_PREFIX = "dispatch.";
+  public static final String PHASE_CARD_ENTRY_NONCE_RESPONSE = "cardEntry.nonceResponseWait";
+  public static final String PHASE_CARD_ENTRY_CLOSE = "cardEntry.closeDelay";
+  public static final String PHASE_GOOGLE_PAY_READY_TO_PAY = "googlePay.isReadyToPay";
+  public static final String PHASE_GOOGLE_PAY_NONCE_REQUEST = "googlePay.nonceRequest";
+
+  private static volatile PerformanceListener listener;
+
+  private final ConcurrentMap<String, LatencyHistogram> histograms;
+
+  public PerformanceMetrics() {
+    histograms = new ConcurrentHashMap<>();
+  }
+
+  public static void setListener(PerformanceListener performanceListener) {
+    listener = performanceListener;
+  }
+
+  public static long startTimer() {
+    return System.nanoTime();
+  }
+
+  public void record(String phase, long startNanos) {
+    long durationNanos = System.nanoTime() - startNanos;
+    LatencyHistogram histogram = histograms.get(phase);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(phase, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    histogram.record(durationNanos);
+
+    PerformanceListener performanceListener = listener;
+    if (performanceListener != null) {
+      performanceListener.onPhaseRecorded(phase, durationNanos);
+    }
+  }
+
+  /**
+   * Returns the percentile of a phase's latency in milliseconds, or -1 until the phase has at
+   * least {@code minSamples} samples.
+   */
+  public double getPercentileMillis(String phase, double percentile, long minSamples) {
+    LatencyHistogram histogram = histograms.get(phase);
+    if (histogram == null) {
+      return -1;
+    }
+    long samples = histogram.count.get();
+    return samples < minSamples ? -1 : histogram.percentileMillis(samples, percentile);
+  }
+
+  public Map<String, Object> toMapObject(boolean reset) {
+    Map<String, Object> mapToReturn = new LinkedHashMap<>();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      mapToReturn.put(entry.getKey(), entry.getValue().toMapObject());
+    }
+    if (reset) {
+      histograms.clear();
+    }
+    return mapToReturn;
+  }
+
+  /** Power-of-two microsecond buckets; percentiles report the upper bound of their bucket. */
+  private static final class LatencyHistogram {
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long durationNanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(durationNanos, 0));
+      int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      totalNanos.addAndGet(durationNanos);
+      long currentMax = maxNanos.get();
+      while (durationNanos > currentMax && !maxNanos.compareAndSet(currentMax, durationNanos)) {
+        currentMax = maxNanos.get();
+      }
+    }
+
+    Map<String, Object> toMapObject() {
+      long samples = count.get();
+      Map<String, Object> mapToReturn = new LinkedHashMap<>();
+      mapToReturn.put("count", samples);
+      mapToReturn.put("meanMs", samples == 0 ? 0.0 : nanosToMillis(totalNanos.get() / samples));
+      mapToReturn.put("p50Ms", percentileMillis(samples, 0.5));
+      mapToReturn.put("p99Ms", percentileMillis(samples, 0.99));
+      mapToReturn.put("maxMs", nanosToMillis(maxNanos.get()));
+      return mapToReturn;
+    }
+
+    private double percentileMillis(long samples, double percentile) {
+      long threshold = (long) Math.ceil(samples * percentile);
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+        seen += buckets.get(bucket);
+        if (seen >= threshold && seen > 0) {
+          return (1L << bucket) / 1000.0;
+        }
+      }
+      return 0.0;
+    }
+
+    private static double nanosToMillis(long nanos) {
+      return nanos / 1000000.0;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Context;
+import android.util.Log;
+import io.flutter.plugin.common.MethodChannel;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import sqip.Card;
+import sqip.flutter.internal.converter.BinaryCodec;
+import sqip.flutter.internal.converter.CardConverter;
+
+/**
+ * Summaries of the cards most recently tokenized, so a "pay with a recent card" screen can render
+ * without waiting on a payment flow. A summary is brand, last four digits, expiration and card
+ * types; never the nonce, the PAN or the postal code.
+ *
+ * <p>Summaries are kept encoded, least recently used first, and evicted by count, total size and
+ * age. The {@code getRecentCards} payload is encoded once per change and reused until the next
+ * one. Persistence is opt-in: the payload itself is written to a file in the app's files
+ * directory, replacing the previous one with a rename. Reads and file work run on the cache's own
+ * thread, so a read issued right after enabling persistence sees the cards loaded from disk.
+ *
+ * <p>The cache is a {@link SharedStore}, as engines with their own cache would write the same file.
+ */
+public final class RecentCardCache extends SharedStore {
+  private static final String TAG = "RecentCardCache";
+  private static final String FILE_NAME = "sqip_flutter_recent_cards";
+
+  private static final int MAX_CARDS = 10;
+  private static final int MAX_CARD_BYTES = 1024;
+  private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+
+  private static final class Entry {
+    final byte[] card;
+    final long lastUsedAtMs;
+
+    Entry(byte[] card, long lastUsedAtMs) {
+      this.card = card;
+      this.lastUsedAtMs = lastUsedAtMs;
+    }
+  }
+
+  private static final References<RecentCardCache> REFERENCES = new References<RecentCardCache>() {
+    @Override protected RecentCardCache create(Context applicationContext) {
+      return new RecentCardCache(new File(applicationContext.getFilesDir(), FILE_NAME), Clock.WALL);
+    }
+  };
+
+  private final File file;
+  private final Clock clock;
+  private final CardConverter cardConverter;
+  // Guarded by this. Keyed by the encoded summary, in insertion order, which is least recently used first.
+  private final LinkedHashMap<ByteBuffer, Entry> entries;
+  private int cardBytes;
+  private byte[] encodedPayload;
+  private volatile boolean persistenceEnabled;
+
+  /** Returns the process's cache, call {@link #release} once done with it. */
+  public static RecentCardCache acquire(Context applicationContext) {
+    return REFERENCES.acquire(applicationContext);
+  }
+
+  RecentCardCache(File file, Clock clock) {
+    super(TAG, "sqip-flutter-recent-cards");
+    this.file = file;
+    this.clock = clock;
+    cardConverter = new CardConverter();
+    entries = new LinkedHashMap<>();
+  }
+
+  /** Records the card as the most recently used one. Called from any thread. */
+  public void add(Card card) {
+    byte[] summary = cardConverter.toSummaryByteArray(card);
+    synchronized (this) {
+      Entry previous = entries.remove(ByteBuffer.wrap(summary));
+      if (previous != null) {
+        cardBytes -= previous.card.length;
+      }
+      entries.put(ByteBuffer.wrap(summary), new Entry(summary, clock.millis()));
+      cardBytes += summary.length;
+      evict();
+      encodedPayload = null;
+    }
+    persist();
+  }
+
+  /**
+   * Completes {@code result} with the recent cards payload, most recently used last. Once the
+   * cache is closed it completes with no cards.
+   */
+  public void getRecentCards(final MethodChannel.Result result) {
+    boolean submitted = submit(new Runnable() {
+      @Override
+      public void run() {
+        result.success(getEncodedPayload());
+      }
+    });
+    if (!submitted) {
+      result.success(BinaryCodec.encodeRecentCards(new long[0], new byte[0][]));
+    }
+  }
+
+  public void clear() {
+    synchronized (this) {
+      entries.clear();
+      cardBytes = 0;
+      encodedPayload = null;
+    }
+    persist();
+  }
+
+  /**
+   * Enabling loads any cards saved by an earlier process, disabling deletes the file but keeps
+   * the cards in memory.
+   */
+  public void setPersistenceEnabled(final boolean enabled) {
+    persistenceEnabled = enabled;
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        if (enabled) {
+          load();
+        } else if (file.exists() && !file.delete()) {
+          Log.w(TAG, "Failed to delete the recent cards file.");
+        }
+      }
+    });
+  }
+
+  private synchronized byte[] getEncodedPayload() {
+    evict();
+    if (encodedPayload == null) {
+      long[] lastUsedAtMs = new long[entries.size()];
+      byte[][] cards = new byte[entries.size()][];
+      int index = 0;
+      for (Entry entry : entries.values()) {
+        lastUsedAtMs[index] = entry.lastUsedAtMs;
+        cards[index] = entry.card;
+        index++;
+      }
+      encodedPayload = BinaryCodec.encodeRecentCards(lastUsedAtMs, cards);
+    }
+    return encodedPayload;
+  }
+
+  private synchronized void evict() {
+    long expiredBeforeMs = clock.millis() - MAX_AGE_MS;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry eldest = iterator.next();
+      if (entries.size() <= MAX_CARDS && cardBytes <= MAX_CARD_BYTES && eldest.lastUsedAtMs >= expiredBeforeMs) {
+        // Entries are ordered by last use, so everything after is newer still.
+        return;
+      }
+      iterator.remove();
+      cardBytes -= eldest.card.length;
+      encodedPayload = null;
+    }
+  }
+
+  private void persist() {
+    if (!persistenceEnabled) {
+      return;
+    }
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        if (!persistenceEnabled) {
+          return;
+        }
+        try {
+          write(getEncodedPayload());
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to save recent cards.", e);
+        }
+      }
+    });
+  }
+
+  private void write(byte[] payload) throws IOException {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream output = new FileOutputStream(tmpFile);
+    try {
+      output.write(payload);
+    } finally {
+      output.close();
+    }
+    if (!tmpFile.renameTo(file)) {
+      throw new IOException("Failed to replace the recent cards file.");
+    }
+  }
+
+  private void load() {
+    if (!file.exists()) {
+      return;
+    }
+    List<Entry> loaded = new ArrayList<>();
+    try {
+      loaded = read();
+    } catch (IOException e) {
+      // A cache is not worth failing over, start over with the cards in memory.
+      Log.w(TAG, "Failed to load recent cards.", e);
+    }
+    synchronized (this) {
+      // Cards used in this process are newer than the saved ones, so they stay last.
+      Map<ByteBuffer, Entry> current = new LinkedHashMap<>(entries);
+      entries.clear();
+      cardBytes = 0;
+      for (Entry entry : loaded) {
+        if (!current.containsKey(ByteBuffer.wrap(entry.card))) {
+          entries.put(ByteBuffer.wrap(entry.card), entry);
+          cardBytes += entry.card.length;
+        }
+      }
+      for (Map.Entry<ByteBuffer, Entry> entry : current.entrySet()) {
+        entries.put(entry.getKey(), entry.getValue());
+        cardBytes += entry.getValue().card.length;
+      }
+      evict();
+      encodedPayload = null;
+    }
+    persist();
+  }
+
+  private List<Entry> read() throws IOException {
+    byte[] payload = new byte[(int) file.length()];
+    DataInputStream fileInput = new DataInputStream(new FileInputStream(file));
+    try {
+      fileInput.readFully(payload);
+    } finally {
+      fileInput.close();
+    }
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+    if (input.readByte() != BinaryCodec.TAG_RECENT_CARDS) {
+      throw new IOException("Unexpected recent cards file format.");
+    }
+    int count = input.readUnsignedByte();
+    List<Entry> loaded = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long lastUsedAtMs = input.readLong();
+      byte[] card = new byte[input.readUnsignedShort()];
+      input.readFully(card);
+      loaded.add(new Entry(card, lastUsedAtMs));
+    }
+    return loaded;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Context;
+import android.util.Log;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A store with one instance per process, shared by the plugin instances of every engine and doing
+ * its work on its own thread. {@link References#acquire} hands out the instance, and the last
+ * {@link #release} closes it.
+ */
+abstract class SharedStore {
+  private final String tag;
+  private final ExecutorService executor;
+  // Set by acquire before the store is handed out, null for a store created directly in tests.
+  private References<?> references;
+
+  SharedStore(String tag, final String threadName) {
+    this.tag = tag;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, threadName);
+      }
+    });
+  }
+
+  /** Closes the store once every {@link References#acquire} has been released. */
+  public void release() {
+    if (references == null || references.release()) {
+      close();
+    }
+  }
+
+  /** Stops the store's thread once the tasks already submitted have run. */
+  void close() {
+    executor.shutdown();
+  }
+
+  /** Runs {@code task} on the store's thread. Returns false, dropping it, once the store is closed. */
+  final boolean submit(Runnable task) {
+    try {
+      executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      // Late SDK callbacks can arrive after the plugin detached and closed the store.
+      Log.w(tag, "Dropped a task submitted after the store was closed.", e);
+      return false;
+    }
+  }
+
+  /** Reference counts the process's instance of one kind of store. */
+  abstract static class References<T extends SharedStore> {
+    private T instance;
+    private int referenceCount;
+
+    protected abstract T create(Context applicationContext);
+
+    /** Returns the process's instance, creating it if needed. Call its {@link #release} once done. */
+    synchronized T acquire(Context applicationContext) {
+      if (instance == null) {
+        instance = create(applicationContext);
+        ((SharedStore) instance).references = this;
+      }
+      referenceCount++;
+      return instance;
+    }
+
+    /** Returns whether that was the last reference, after which the next acquire creates a new instance. */
+    private synchronized boolean release() {
+      if (--referenceCount > 0) {
+        return false;
+      }
+      instance = null;
+      return true;
+    }
+  }
+}
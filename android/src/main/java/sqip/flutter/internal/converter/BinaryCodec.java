@@ -0,0 +1,90 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Compact payload format shared with lib/src/binary_codec.dart. Every payload starts with a
+ * record tag and an int32 request id (0 when there is none). Fields follow in a fixed order,
+ * enums are written as wire ordinals and strings as a big-endian uint16 byte length followed
+ * by UTF-8 bytes, with 0xFFFF marking null.
+ */
+public final class BinaryCodec {
+  public static final byte TAG_CARD_DETAILS = 1;
+  public static final byte TAG_ERROR_INFO = 2;
+  public static final byte TAG_RECENT_CARDS = 3;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int NULL_STRING_LENGTH = 0xFFFF;
+
+  private BinaryCodec() {
+  }
+
+  public static byte[] encodeErrorInfo(int requestId, String code, String message, String debugCode, String debugMessage) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeByte(TAG_ERROR_INFO);
+      output.writeInt(requestId);
+      writeString(output, code);
+      writeString(output, message);
+      writeString(output, debugCode);
+      writeString(output, debugMessage);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Recent cards have no request id: the tag is followed by a uint8 count and, for each card, an
+   * int64 last used time in epoch millis, a uint16 length and a card record from
+   * {@link CardConverter#toSummaryByteArray}.
+   */
+  public static byte[] encodeRecentCards(long[] lastUsedAtMs, byte[][] cards) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + cards.length * 48);
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeByte(TAG_RECENT_CARDS);
+      output.writeByte(cards.length);
+      for (int i = 0; i < cards.length; i++) {
+        output.writeLong(lastUsedAtMs[i]);
+        output.writeShort(cards[i].length);
+        output.write(cards[i]);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static void writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      output.writeShort(NULL_STRING_LENGTH);
+      return;
+    }
+    byte[] utf8 = value.getBytes(UTF_8);
+    if (utf8.length >= NULL_STRING_LENGTH) {
+      throw new IllegalArgumentException("String is too long to encode: " + utf8.length + " bytes");
+    }
+    output.writeShort(utf8.length);
+    output.write(utf8);
+  }
+}
@@ -15,17 +15,36 @@
 */
 package sqip.flutter.internal.converter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import sqip.Card;
 
 public final class CardConverter {
+  // Wire ordinals for BinaryCodec, in the same order as the Dart enum declarations in models.dart.
+  private static final List<String> BRAND_WIRE_ORDER = Arrays.asList("OTHER_BRAND", "VISA",
+      "MASTERCARD", "AMERICAN_EXPRESS", "DISCOVER", "DISCOVER_DINERS", "JCB", "CHINA_UNION_PAY");
+  private static final List<String> TYPE_WIRE_ORDER = Arrays.asList("DEBIT", "CREDIT", "UNKNOWN");
+  private static final List<String> PREPAID_TYPE_WIRE_ORDER = Arrays.asList("PREPAID", "NOT_PREPAID", "UNKNOWN");
+
+  // Seven card fields in an eight slot table: at the default load factor they would need sixteen.
+  private static final int CARD_MAP_CAPACITY = 8;
+  private static final float CARD_MAP_LOAD_FACTOR = 1f;
+
   private static final Map<Card.Brand, String> brandStringMap;
   private static final Map<Card.Type, String> typeStringMap;
   private static final Map<Card.PrepaidType, String> prepaidTypeStringMap;
+  private static final Map<Card.Brand, Integer> brandOrdinalMap;
+  private static final Map<Card.Type, Integer> typeOrdinalMap;
+  private static final Map<Card.PrepaidType, Integer> prepaidTypeOrdinalMap;
 
   static {
-    brandStringMap = new LinkedHashMap<>();
+    brandStringMap = new EnumMap<>(Card.Brand.class);
     for (Card.Brand brand : Card.Brand.values()) {
       switch(brand) {
         case OTHER_BRAND:
@@ -56,7 +75,7 @@ public final class CardConverter {
           throw new RuntimeException("Unexpected brand value: " + brand.name());
       }
     }
-    typeStringMap = new LinkedHashMap<>();
+    typeStringMap = new EnumMap<>(Card.Type.class);
     for (Card.Type type : Card.Type.values()) {
       switch(type) {
         case DEBIT:
@@ -72,7 +91,7 @@ public final class CardConverter {
           throw new RuntimeException("Unexpected card type value: " + type.name());
       }
     }
-    prepaidTypeStringMap = new LinkedHashMap<>();
+    prepaidTypeStringMap = new EnumMap<>(Card.PrepaidType.class);
     for (Card.PrepaidType prepaidType : Card.PrepaidType.values()) {
       switch(prepaidType) {
         case PREPAID:
@@ -88,10 +107,22 @@ public final class CardConverter {
           throw new RuntimeException("Unexpected card prepaid type value: " + prepaidType.name());
       }
     }
+    brandOrdinalMap = new EnumMap<>(Card.Brand.class);
+    for (Map.Entry<Card.Brand, String> entry : brandStringMap.entrySet()) {
+      brandOrdinalMap.put(entry.getKey(), BRAND_WIRE_ORDER.indexOf(entry.getValue()));
+    }
+    typeOrdinalMap = new EnumMap<>(Card.Type.class);
+    for (Map.Entry<Card.Type, String> entry : typeStringMap.entrySet()) {
+      typeOrdinalMap.put(entry.getKey(), TYPE_WIRE_ORDER.indexOf(entry.getValue()));
+    }
+    prepaidTypeOrdinalMap = new EnumMap<>(Card.PrepaidType.class);
+    for (Map.Entry<Card.PrepaidType, String> entry : prepaidTypeStringMap.entrySet()) {
+      prepaidTypeOrdinalMap.put(entry.getKey(), PREPAID_TYPE_WIRE_ORDER.indexOf(entry.getValue()));
+    }
   }
 
   public Map<String, Object> toMapObject(Card card) {
-    Map<String, Object> mapToReturn = new LinkedHashMap<>();
+    Map<String, Object> mapToReturn = new LinkedHashMap<>(CARD_MAP_CAPACITY, CARD_MAP_LOAD_FACTOR);
     mapToReturn.put("brand", brandStringMap.get(card.getBrand()));
     mapToReturn.put("lastFourDigits", card.getLastFourDigits());
     mapToReturn.put("expirationMonth", card.getExpirationMonth());
@@ -102,4 +133,32 @@ public final class CardConverter {
 
     return mapToReturn;
   }
+
+  /**
+   * Encodes the card on its own, as stored by the recent card cache. The postal code is left out
+   * (written as null) since a summary only needs enough to recognize the card.
+   */
+  public byte[] toSummaryByteArray(Card card) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    try {
+      writeTo(card, null, new DataOutputStream(bytes));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  void writeTo(Card card, DataOutputStream output) throws IOException {
+    writeTo(card, card.getPostalCode(), output);
+  }
+
+  private void writeTo(Card card, String postalCode, DataOutputStream output) throws IOException {
+    output.writeByte(brandOrdinalMap.get(card.getBrand()));
+    BinaryCodec.writeString(output, card.getLastFourDigits());
+    output.writeByte(card.getExpirationMonth());
+    output.writeShort(card.getExpirationYear());
+    BinaryCodec.writeString(output, postalCode);
+    output.writeByte(typeOrdinalMap.get(card.getType()));
+    output.writeByte(prepaidTypeOrdinalMap.get(card.getPrepaidType()));
+  }
 }
@@ -15,23 +15,47 @@
 */
 package sqip.flutter.internal.converter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import sqip.CardDetails;
 
 public final class CardDetailsConverter {
 
+  // nonce, card and the optional request id added by CardEntryModule.
+  private static final int CARD_DETAILS_MAP_CAPACITY = 4;
+
   private final CardConverter cardConverter;
+  private final ByteArrayOutputStream buffer;
+  private final DataOutputStream output;
 
   public CardDetailsConverter(CardConverter cardConverter) {
     this.cardConverter = cardConverter;
+    buffer = new ByteArrayOutputStream(128);
+    output = new DataOutputStream(buffer);
   }
 
   public Map<String, Object> toMapObject(CardDetails cardDetails) {
-    Map<String, Object> mapToReturn = new LinkedHashMap<>();
+    Map<String, Object> mapToReturn = new LinkedHashMap<>(CARD_DETAILS_MAP_CAPACITY);
     mapToReturn.put("nonce", cardDetails.getNonce());
     mapToReturn.put("card", cardConverter.toMapObject(cardDetails.getCard()));
 
     return mapToReturn;
   }
+
+  public synchronized byte[] toByteArray(CardDetails cardDetails, int requestId) {
+    // the encoding buffer is reused, only the returned array is allocated per call
+    buffer.reset();
+    try {
+      output.writeByte(BinaryCodec.TAG_CARD_DETAILS);
+      output.writeInt(requestId);
+      BinaryCodec.writeString(output, cardDetails.getNonce());
+      cardConverter.writeTo(cardDetails.getCard(), output);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return buffer.toByteArray();
+  }
 }
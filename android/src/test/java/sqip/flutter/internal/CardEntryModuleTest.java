@@ -0,0 +1,172 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.ContextWrapper;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sqip.CardEntryActivityCommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CardEntryModuleTest {
+  private static final long LONG_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private TestMainThread mainThread;
+  private FakeMethodChannel channel;
+  private FakeCardEntrySdk cardEntrySdk;
+  private NonceJournal nonceJournal;
+  private RecentCardCache recentCardCache;
+  private CardEntryModule module;
+  // Request ids of the nonces handed to Dart.
+  private final BlockingQueue<Integer> requestIds = new LinkedBlockingQueue<>();
+
+  @Before
+  public void setUp() {
+    CardEntryModule.setCloseExitAnimationDurationMs(0);
+    mainThread = new TestMainThread();
+    channel = new FakeMethodChannel(mainThread);
+    channel.setListener(new FakeMethodChannel.Listener() {
+      @Override public void onEvent(String method, Object arguments) {
+        if ("cardEntryDidObtainCardDetails".equals(method)) {
+          requestIds.add((Integer) ((Map<?, ?>) arguments).get("requestId"));
+        }
+      }
+    });
+    EventDispatcher eventDispatcher = new EventDispatcher(channel, mainThread);
+    ActivityResultRouter activityResultRouter = new ActivityResultRouter();
+    cardEntrySdk = new FakeCardEntrySdk(activityResultRouter, mainThread);
+    nonceJournal = new NonceJournal(new File(temporaryFolder.getRoot(), "journal"), Clock.WALL);
+    recentCardCache = new RecentCardCache(new File(temporaryFolder.getRoot(), "recent_cards"), Clock.WALL);
+    // Its getString returns null in JVM tests, which is all the timeout error needs.
+    module = new CardEntryModule(new ContextWrapper(null), new FakeActivityProvider(), eventDispatcher,
+        new PaymentEventStream(eventDispatcher), nonceJournal, recentCardCache, activityResultRouter,
+        new PerformanceMetrics(), cardEntrySdk, mainThread);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    module.release();
+    nonceJournal.close();
+    recentCardCache.close();
+    mainThread.awaitIdle();
+    mainThread.shutdown();
+  }
+
+  @Test
+  public void replyBeforeTheTimeoutIsApplied() throws InterruptedException {
+    startCardEntry(LONG_TIMEOUT_MS);
+    channel.setListener(new FakeMethodChannel.Listener() {
+      @Override public void onEvent(String method, Object arguments) {
+        if ("cardEntryDidObtainCardDetails".equals(method)) {
+          module.completeCardEntry(new FakeResult(), (Integer) ((Map<?, ?>) arguments).get("requestId"));
+        }
+      }
+    });
+
+    CardEntryActivityCommand command = cardEntrySdk.submit(TestCards.cardDetails("cnon:1"));
+
+    assertTrue(command instanceof CardEntryActivityCommand.Finish);
+  }
+
+  @Test
+  public void rejectedNonceIsAcknowledged() throws InterruptedException {
+    nonceJournal.setEnabled(true);
+    startCardEntry(LONG_TIMEOUT_MS);
+    channel.setListener(new FakeMethodChannel.Listener() {
+      @Override public void onEvent(String method, Object arguments) {
+        if ("cardEntryDidObtainCardDetails".equals(method)) {
+          module.showCardNonceProcessingError(new FakeResult(), (Integer) ((Map<?, ?>) arguments).get("requestId"),
+              "Declined.");
+        }
+      }
+    });
+
+    CardEntryActivityCommand command = cardEntrySdk.submit(TestCards.cardDetails("cnon:1"));
+
+    assertTrue(command instanceof CardEntryActivityCommand.ShowError);
+    assertEquals(0, recoverPendingNonces().size());
+  }
+
+  @Test
+  public void replyAfterTheTimeoutIsRejected() throws InterruptedException {
+    nonceJournal.setEnabled(true);
+    startCardEntry(1);
+
+    CardEntryActivityCommand command = cardEntrySdk.submit(TestCards.cardDetails("cnon:1"));
+    int requestId = takeRequestId();
+    FakeResult completeResult = new FakeResult();
+    module.completeCardEntry(completeResult, requestId);
+    FakeResult errorResult = new FakeResult();
+    module.showCardNonceProcessingError(errorResult, requestId, "Declined.");
+
+    assertTrue(command instanceof CardEntryActivityCommand.ShowError);
+    assertEquals("fl_card_nonce_request_expired", debugCode(completeResult));
+    assertEquals("fl_card_nonce_request_expired", debugCode(errorResult));
+    // Dart never answered it, so it may not have been charged.
+    assertEquals(1, recoverPendingNonces().size());
+  }
+
+  @Test
+  public void replyToAnUnknownRequestIsRejected() {
+    FakeResult result = new FakeResult();
+    module.completeCardEntry(result, 42);
+
+    assertEquals(ErrorHandlerUtils.USAGE_ERROR, result.errorCode);
+    assertEquals("fl_card_nonce_request_expired", debugCode(result));
+  }
+
+  private void startCardEntry(final long cardNonceResponseTimeoutMs) throws InterruptedException {
+    final FakeResult result = new FakeResult();
+    mainThread.post(new Runnable() {
+      @Override
+      public void run() {
+        module.startCardEntryFlow(result, false, cardNonceResponseTimeoutMs, false, false);
+      }
+    });
+    assertNull(result.await().errorCode);
+  }
+
+  private int takeRequestId() throws InterruptedException {
+    Integer requestId = requestIds.poll(5, TimeUnit.SECONDS);
+    assertNotNull("No nonce reached Dart.", requestId);
+    return requestId;
+  }
+
+  private List<?> recoverPendingNonces() throws InterruptedException {
+    FakeResult result = new FakeResult();
+    nonceJournal.recover(result);
+    return (List<?>) result.await().value;
+  }
+
+  private static String debugCode(FakeResult result) {
+    return (String) ((Map<?, ?>) result.errorDetails).get("debugCode");
+  }
+}
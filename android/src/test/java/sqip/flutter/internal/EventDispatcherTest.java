@@ -0,0 +1,100 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.EventChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventDispatcherTest {
+  private ManualMainThread mainThread;
+  private FakeMethodChannel channel;
+  private EventDispatcher eventDispatcher;
+  private PaymentEventStream paymentEventStream;
+  // Channel methods and stream event types, in the order they reached Dart.
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() {
+    mainThread = new ManualMainThread(new FakeClock(0));
+    channel = new FakeMethodChannel(mainThread);
+    channel.setListener(new FakeMethodChannel.Listener() {
+      @Override
+      public void onEvent(String method, Object arguments) {
+        received.add(method);
+      }
+    });
+    eventDispatcher = new EventDispatcher(channel, mainThread);
+    paymentEventStream = new PaymentEventStream(eventDispatcher);
+    paymentEventStream.onListen(null, new RecordingEventSink());
+  }
+
+  @Test
+  public void streamEventsDoNotSplitTheBatch() {
+    // A card entry nonce followed by its close, as CardEntryModule sends them.
+    eventDispatcher.send("cardEntryDidObtainCardDetails", "payload");
+    paymentEventStream.emit(PaymentEventStream.TYPE_CARD_DETAILS, PaymentEventStream.SOURCE_CARD_ENTRY, "payload");
+    eventDispatcher.send("cardEntryComplete", null);
+    paymentEventStream.emit(PaymentEventStream.TYPE_COMPLETE, PaymentEventStream.SOURCE_CARD_ENTRY, null);
+
+    mainThread.advance(0);
+
+    assertEquals(1, channel.invocations());
+    assertEquals(Arrays.asList("cardEntryDidObtainCardDetails", "cardEntryComplete",
+        PaymentEventStream.TYPE_CARD_DETAILS, PaymentEventStream.TYPE_COMPLETE), received);
+  }
+
+  @Test
+  public void runInOrderSendsTheEventsBeforeIt() {
+    eventDispatcher.send("first", null);
+    paymentEventStream.emit(PaymentEventStream.TYPE_ERROR, PaymentEventStream.SOURCE_CARD_ENTRY, null);
+    eventDispatcher.runInOrder(new Runnable() {
+      @Override
+      public void run() {
+        received.add("action");
+      }
+    });
+    eventDispatcher.send("second", null);
+    eventDispatcher.send("third", null);
+
+    mainThread.advance(0);
+
+    assertEquals(2, channel.invocations());
+    assertEquals(Arrays.asList("first", PaymentEventStream.TYPE_ERROR, "action", "second", "third"), received);
+  }
+
+  private final class RecordingEventSink implements EventChannel.EventSink {
+    @Override
+    public void success(Object event) {
+      received.add((String) ((Map<?, ?>) event).get("type"));
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+    }
+
+    @Override
+    public void endOfStream() {
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The activity the plugin is attached to. A configuration change is a {@link #detach} followed by
+ * an {@link #attach} of a new activity, as the embedding does when the activity is recreated.
+ */
+final class FakeActivityProvider implements ActivityProvider {
+  private final AtomicInteger configurationChanges = new AtomicInteger();
+  private volatile Activity activity = new Activity();
+
+  @Override
+  public Activity getActivity() {
+    return activity;
+  }
+
+  void detach() {
+    activity = null;
+  }
+
+  void attach() {
+    activity = new Activity();
+    configurationChanges.incrementAndGet();
+  }
+
+  /** Returns how many times an activity was attached after the first one. */
+  int configurationChanges() {
+    return configurationChanges.get();
+  }
+}
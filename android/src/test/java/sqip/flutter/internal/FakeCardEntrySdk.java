@@ -0,0 +1,93 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+import android.content.Intent;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import sqip.Callback;
+import sqip.CardDetails;
+import sqip.CardEntry;
+import sqip.CardEntryActivityCommand;
+import sqip.CardEntryActivityResult;
+import sqip.CardNonceBackgroundHandler;
+
+/**
+ * Card entry without an activity. The test plays the buyer: {@link #submit} calls the nonce
+ * handler the way the SDK's background thread does, and {@link #finish} or {@link #cancel}
+ * closes card entry, delivering its activity result on the main thread.
+ */
+final class FakeCardEntrySdk implements CardEntrySdk {
+  private final ActivityResultRouter activityResultRouter;
+  private final MainThread mainThread;
+  private final Queue<CardEntryActivityResult> closingResults;
+  private final AtomicInteger launches;
+  private volatile CardNonceBackgroundHandler nonceHandler;
+
+  FakeCardEntrySdk(ActivityResultRouter activityResultRouter, MainThread mainThread) {
+    this.activityResultRouter = activityResultRouter;
+    this.mainThread = mainThread;
+    closingResults = new ConcurrentLinkedQueue<>();
+    launches = new AtomicInteger();
+  }
+
+  @Override
+  public void setCardNonceBackgroundHandler(CardNonceBackgroundHandler handler) {
+    nonceHandler = handler;
+  }
+
+  @Override
+  public void startCardEntryActivity(Activity activity, boolean collectPostalCode) {
+    if (!mainThread.isCurrentThread()) {
+      throw new IllegalStateException("Card entry must be started on the main thread.");
+    }
+    launches.incrementAndGet();
+  }
+
+  @Override
+  public void handleActivityResult(Intent data, Callback<CardEntryActivityResult> callback) {
+    callback.onResult(closingResults.poll());
+  }
+
+  int launches() {
+    return launches.get();
+  }
+
+  /** Submits a card and blocks until the plugin tells card entry what to do with it. */
+  CardEntryActivityCommand submit(CardDetails cardDetails) {
+    return nonceHandler.handleEnteredCardInBackground(cardDetails);
+  }
+
+  void finish(CardDetails cardDetails) {
+    close(new CardEntryActivityResult.Success(cardDetails));
+  }
+
+  void cancel() {
+    close(new CardEntryActivityResult.Canceled());
+  }
+
+  private void close(final CardEntryActivityResult result) {
+    mainThread.post(new Runnable() {
+      @Override
+      public void run() {
+        closingResults.add(result);
+        activityResultRouter.onActivityResult(CardEntry.DEFAULT_CARD_ENTRY_REQUEST_CODE, Activity.RESULT_OK, new Intent());
+      }
+    });
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A clock that only moves when told to. */
+final class FakeClock implements Clock {
+  private final AtomicLong millis;
+
+  FakeClock(long millis) {
+    this.millis = new AtomicLong(millis);
+  }
+
+  @Override
+  public long millis() {
+    return millis.get();
+  }
+
+  void advance(long deltaMs) {
+    millis.addAndGet(deltaMs);
+  }
+}
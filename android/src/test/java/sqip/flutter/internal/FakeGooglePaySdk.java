@@ -0,0 +1,142 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wallet.IsReadyToPayRequest;
+import com.google.android.gms.wallet.PaymentDataRequest;
+import com.google.android.gms.wallet.TransactionInfo;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import sqip.Callback;
+import sqip.GooglePayNonceResult;
+
+/**
+ * Google Pay without Play Services. A payment sheet stays up until {@link #confirmSheet} is
+ * called, and every token is exchanged for a nonce on the main thread, after
+ * {@link #failNextNonceRequests} network errors if asked for.
+ */
+final class FakeGooglePaySdk implements GooglePaySdk {
+  private final ActivityResultRouter activityResultRouter;
+  private final MainThread mainThread;
+  // Payment sheet results to the token they carry.
+  private final Map<Intent, String> tokens;
+  private final Queue<Runnable> shownSheets;
+  private final AtomicInteger sheets;
+  private final AtomicInteger nonceRequests;
+  private final AtomicInteger failuresToInject;
+
+  FakeGooglePaySdk(ActivityResultRouter activityResultRouter, MainThread mainThread) {
+    this.activityResultRouter = activityResultRouter;
+    this.mainThread = mainThread;
+    tokens = new ConcurrentHashMap<>();
+    shownSheets = new ConcurrentLinkedQueue<>();
+    sheets = new AtomicInteger();
+    nonceRequests = new AtomicInteger();
+    failuresToInject = new AtomicInteger();
+  }
+
+  @Override
+  public Client createClient(Context applicationContext, int environment) {
+    return new Client() {
+      @Override public Task<Boolean> isReadyToPay(IsReadyToPayRequest request) {
+        return Tasks.forResult(true);
+      }
+
+      @Override public void loadPaymentData(PaymentDataRequest request, Activity activity, final int requestCode) {
+        final String token = "token-" + sheets.incrementAndGet();
+        shownSheets.add(new Runnable() {
+          @Override
+          public void run() {
+            Intent data = new Intent();
+            tokens.put(data, token);
+            activityResultRouter.onActivityResult(requestCode, Activity.RESULT_OK, data);
+          }
+        });
+      }
+    };
+  }
+
+  @Override
+  public IsReadyToPayRequest createIsReadyToPayRequest() {
+    return null;
+  }
+
+  @Override
+  public PaymentDataRequest createPaymentDataRequest(String squareLocationId, TransactionInfo transactionInfo) {
+    return null;
+  }
+
+  @Override
+  public String getGooglePayToken(Intent data) {
+    return data != null ? tokens.remove(data) : null;
+  }
+
+  @Override
+  public void requestNonce(final String googlePayToken, final Callback<GooglePayNonceResult> callback) {
+    nonceRequests.incrementAndGet();
+    final boolean fail = takeInjectedFailure();
+    mainThread.post(new Runnable() {
+      @Override
+      public void run() {
+        callback.onResult(fail
+            ? new GooglePayNonceResult.Error(GooglePayNonceResult.Error.Code.NO_NETWORK, "No network.",
+                "google_pay_no_network", "Offline.")
+            : new GooglePayNonceResult.Success(TestCards.cardDetails("cnon:" + googlePayToken)));
+      }
+    });
+  }
+
+  private boolean takeInjectedFailure() {
+    int remaining;
+    do {
+      remaining = failuresToInject.get();
+      if (remaining <= 0) {
+        return false;
+      }
+    } while (!failuresToInject.compareAndSet(remaining, remaining - 1));
+    return true;
+  }
+
+  /** Returns how many sheets are up, waiting for the buyer. */
+  int sheetsShown() {
+    return shownSheets.size();
+  }
+
+  /** The buyer confirms the oldest sheet that is up, its result arrives on the main thread. */
+  void confirmSheet() {
+    mainThread.post(shownSheets.remove());
+  }
+
+  void failNextNonceRequests(int count) {
+    failuresToInject.set(count);
+  }
+
+  int sheets() {
+    return sheets.get();
+  }
+
+  int nonceRequests() {
+    return nonceRequests.get();
+  }
+}
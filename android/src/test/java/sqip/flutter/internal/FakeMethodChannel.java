@@ -0,0 +1,102 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodChannel;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the Dart side of the plugin's channel: every native to Dart call is handed to a
+ * listener, with "batchedEvents" unpacked into its events as lib/in_app_payments.dart does.
+ */
+final class FakeMethodChannel extends MethodChannel {
+  interface Listener {
+    /** Called on the thread that invoked the channel, which must be the main thread. */
+    void onEvent(String method, Object arguments);
+  }
+
+  private final MainThread mainThread;
+  private final AtomicInteger invocations;
+  private final AtomicInteger offMainThreadInvocations;
+  private volatile Listener listener;
+
+  FakeMethodChannel(MainThread mainThread) {
+    super(new FakeBinaryMessenger(), "square_in_app_payments");
+    this.mainThread = mainThread;
+    invocations = new AtomicInteger();
+    offMainThreadInvocations = new AtomicInteger();
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns how many channel messages were sent, a batch counting once. */
+  int invocations() {
+    return invocations.get();
+  }
+
+  /** Returns how many channel messages were sent from a thread other than the main thread. */
+  int offMainThreadInvocations() {
+    return offMainThreadInvocations.get();
+  }
+
+  @Override
+  public void invokeMethod(String method, Object arguments) {
+    invokeMethod(method, arguments, null);
+  }
+
+  @Override
+  public void invokeMethod(String method, Object arguments, MethodChannel.Result callback) {
+    invocations.incrementAndGet();
+    if (!mainThread.isCurrentThread()) {
+      offMainThreadInvocations.incrementAndGet();
+    }
+    if (EventDispatcher.METHOD_BATCHED_EVENTS.equals(method)) {
+      for (Object event : (List<?>) arguments) {
+        List<?> methodAndArguments = (List<?>) event;
+        deliver((String) methodAndArguments.get(0), methodAndArguments.get(1));
+      }
+    } else {
+      deliver(method, arguments);
+    }
+  }
+
+  private void deliver(String method, Object arguments) {
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onEvent(method, arguments);
+    }
+  }
+
+  /** The channel never reaches the messenger, as {@link #invokeMethod} is overridden. */
+  private static final class FakeBinaryMessenger implements BinaryMessenger {
+    @Override
+    public void send(String channel, ByteBuffer message) {
+    }
+
+    @Override
+    public void send(String channel, ByteBuffer message, BinaryReply callback) {
+    }
+
+    @Override
+    public void setMessageHandler(String channel, BinaryMessageHandler handler) {
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.MethodChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/** Records the reply to a method call and the thread it arrived on. */
+public final class FakeResult implements MethodChannel.Result {
+  private final CountDownLatch replied = new CountDownLatch(1);
+  public volatile Object value;
+  public volatile String errorCode;
+  public volatile String errorMessage;
+  public volatile Object errorDetails;
+  public volatile boolean notImplemented;
+  public volatile String threadName;
+  public volatile int replyCount;
+
+  @Override
+  public void success(Object result) {
+    value = result;
+    onReply();
+  }
+
+  @Override
+  public void error(String errorCode, String errorMessage, Object errorDetails) {
+    this.errorCode = errorCode;
+    this.errorMessage = errorMessage;
+    this.errorDetails = errorDetails;
+    onReply();
+  }
+
+  @Override
+  public void notImplemented() {
+    notImplemented = true;
+    onReply();
+  }
+
+  public boolean hasReplied() {
+    return replied.getCount() == 0;
+  }
+
+  public FakeResult await() throws InterruptedException {
+    assertTrue("No reply within 5 seconds.", replied.await(5, TimeUnit.SECONDS));
+    return this;
+  }
+
+  private synchronized void onReply() {
+    threadName = Thread.currentThread().getName();
+    replyCount++;
+    replied.countDown();
+  }
+}
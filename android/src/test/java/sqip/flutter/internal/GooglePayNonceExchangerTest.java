@@ -0,0 +1,311 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import sqip.Callback;
+import sqip.CardDetails;
+import sqip.GooglePayNonceResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GooglePayNonceExchangerTest {
+  private static final String TOKEN = "google-pay-token";
+  private static final long HEDGE_SAMPLE_MS = 100;
+
+  private FakeClock clock;
+  private ManualMainThread mainThread;
+  private FakeNonceRequester nonceRequester;
+  private PerformanceMetrics performanceMetrics;
+  private RecordingListener listener;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(10000);
+    mainThread = new ManualMainThread(clock);
+    nonceRequester = new FakeNonceRequester();
+    performanceMetrics = new PerformanceMetrics();
+    listener = new RecordingListener();
+  }
+
+  @Test
+  public void backoffIsJitteredUpToAnExponentialCap() {
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.999));
+    exchanger.setPolicy(policy(5, 200, 500, false, 100));
+
+    exchanger.exchange(TOKEN, listener);
+    List<Long> delays = new ArrayList<>();
+    for (int attempt = 1; attempt < 5; attempt++) {
+      nonceRequester.respond(attempt - 1, networkError());
+      delays.add(mainThread.nextDelayMs());
+      mainThread.advance(mainThread.nextDelayMs());
+    }
+
+    assertEquals(Arrays.asList(199L, 399L, 499L, 499L), delays);
+    assertEquals(5, nonceRequester.requests());
+  }
+
+  @Test
+  public void backoffStaysWithinBoundsForAnyRandomValue() {
+    Random random = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      mainThread = new ManualMainThread(clock);
+      nonceRequester = new FakeNonceRequester();
+      GooglePayNonceExchanger exchanger = exchanger(random);
+      exchanger.setPolicy(policy(4, 200, 700, false, 100));
+
+      exchanger.exchange(TOKEN, listener);
+      long[] bounds = { 200, 400, 700 };
+      for (int attempt = 0; attempt < bounds.length; attempt++) {
+        nonceRequester.respond(attempt, networkError());
+        long delayMs = mainThread.nextDelayMs();
+        assertTrue("Delay " + delayMs, delayMs >= 0 && delayMs < bounds[attempt]);
+        mainThread.advance(delayMs);
+      }
+    }
+  }
+
+  @Test
+  public void networkErrorsGiveUpAfterMaxAttempts() {
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.5));
+    exchanger.setPolicy(policy(3, 200, 2000, false, 100));
+
+    exchanger.exchange(TOKEN, listener);
+    for (int attempt = 0; attempt < 3; attempt++) {
+      nonceRequester.respond(attempt, networkError());
+      mainThread.advance(2000);
+    }
+
+    assertEquals(3, nonceRequester.requests());
+    assertEquals(1, listener.failures.size());
+    assertEquals("NO_NETWORK", listener.failures.get(0).getCode());
+    assertEquals(0, mainThread.pendingTasks());
+  }
+
+  @Test
+  public void otherErrorsAreNotRetried() {
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.5));
+
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(0, usageError());
+
+    assertEquals(1, nonceRequester.requests());
+    assertEquals("USAGE_ERROR", listener.failures.get(0).getCode());
+    assertEquals(0, mainThread.pendingTasks());
+  }
+
+  @Test
+  public void hedgeThatAnswersFirstWins() {
+    GooglePayNonceExchanger exchanger = hedgingExchanger();
+
+    exchanger.exchange(TOKEN, listener);
+    mainThread.advance(hedgeDelayMs() - 1);
+    assertEquals(1, nonceRequester.requests());
+    mainThread.advance(1);
+    assertEquals(2, nonceRequester.requests());
+    nonceRequester.respond(1, success("cnon:hedge"));
+    nonceRequester.respond(0, success("cnon:original"));
+
+    assertEquals(1, listener.successes.size());
+    assertEquals("cnon:hedge", listener.successes.get(0).getNonce());
+    assertTrue(listener.failures.isEmpty());
+  }
+
+  @Test
+  public void originalThatAnswersFirstWinsAndTheHedgeIsIgnored() {
+    GooglePayNonceExchanger exchanger = hedgingExchanger();
+
+    exchanger.exchange(TOKEN, listener);
+    mainThread.advance(hedgeDelayMs());
+    // The backend may refuse a token it has already seen; that doesn't fail the exchange.
+    nonceRequester.respond(1, usageError());
+    nonceRequester.respond(0, success("cnon:original"));
+
+    assertEquals(1, listener.successes.size());
+    assertEquals("cnon:original", listener.successes.get(0).getNonce());
+    assertTrue(listener.failures.isEmpty());
+  }
+
+  @Test
+  public void noHedgeBeforeEnoughSamplesOrWhenAnswerComesFirst() {
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.5));
+    exchanger.setPolicy(policy(3, 200, 2000, true, 100));
+
+    exchanger.exchange(TOKEN, listener);
+    assertEquals(0, mainThread.pendingTasks());
+
+    seedHedgeSamples();
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(1, success("cnon:fast"));
+    mainThread.advance(hedgeDelayMs());
+
+    assertEquals(2, nonceRequester.requests());
+  }
+
+  @Test
+  public void circuitOpensHalfOpensAndCloses() {
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.5));
+    exchanger.setPolicy(policy(1, 200, 2000, false, 2, 1000));
+
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(0, networkError());
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(1, networkError());
+
+    // Open: fails with the last network error without a request.
+    exchanger.exchange(TOKEN, listener);
+    assertEquals(2, nonceRequester.requests());
+    assertEquals(3, listener.failures.size());
+    assertEquals("NO_NETWORK", listener.failures.get(2).getCode());
+
+    // Half open: one trial request, and its failure reopens the circuit.
+    clock.advance(1000);
+    exchanger.exchange(TOKEN, listener);
+    assertEquals(3, nonceRequester.requests());
+    nonceRequester.respond(2, networkError());
+    exchanger.exchange(TOKEN, listener);
+    assertEquals(3, nonceRequester.requests());
+
+    // A successful trial closes it, so a single failure afterwards doesn't open it again.
+    clock.advance(1000);
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(3, success("cnon:trial"));
+    exchanger.exchange(TOKEN, listener);
+    nonceRequester.respond(4, networkError());
+    exchanger.exchange(TOKEN, listener);
+
+    assertEquals(6, nonceRequester.requests());
+    assertEquals(1, listener.successes.size());
+  }
+
+  @Test
+  public void releaseCancelsPendingRetriesAndDropsLateResults() {
+    GooglePayNonceExchanger exchanger = hedgingExchanger();
+
+    exchanger.exchange(TOKEN, listener);
+    assertEquals(1, mainThread.pendingTasks());
+    exchanger.release();
+    assertEquals(0, mainThread.pendingTasks());
+    nonceRequester.respond(0, success("cnon:late"));
+    exchanger.exchange(TOKEN, listener);
+    mainThread.advance(10000);
+
+    assertEquals(1, nonceRequester.requests());
+    assertTrue(listener.successes.isEmpty());
+    assertTrue(listener.failures.isEmpty());
+  }
+
+  private GooglePayNonceExchanger exchanger(Random random) {
+    return new GooglePayNonceExchanger(performanceMetrics, nonceRequester, mainThread, clock, random);
+  }
+
+  private GooglePayNonceExchanger hedgingExchanger() {
+    seedHedgeSamples();
+    GooglePayNonceExchanger exchanger = exchanger(new FixedRandom(0.5));
+    exchanger.setPolicy(policy(3, 200, 2000, true, 100));
+    return exchanger;
+  }
+
+  private void seedHedgeSamples() {
+    for (int i = 0; i < 20; i++) {
+      performanceMetrics.record(PerformanceMetrics.PHASE_GOOGLE_PAY_NONCE_REQUEST,
+          System.nanoTime() - HEDGE_SAMPLE_MS * 1000000);
+    }
+  }
+
+  private long hedgeDelayMs() {
+    return (long) Math.ceil(performanceMetrics.getPercentileMillis(
+        PerformanceMetrics.PHASE_GOOGLE_PAY_NONCE_REQUEST, 0.95, 20));
+  }
+
+  private static GooglePayNonceExchanger.Policy policy(int maxAttempts, long initialBackoffMs, long maxBackoffMs,
+      boolean hedgeRequests, int circuitBreakerFailureThreshold) {
+    return policy(maxAttempts, initialBackoffMs, maxBackoffMs, hedgeRequests, circuitBreakerFailureThreshold, 30000);
+  }
+
+  private static GooglePayNonceExchanger.Policy policy(int maxAttempts, long initialBackoffMs, long maxBackoffMs,
+      boolean hedgeRequests, int circuitBreakerFailureThreshold, long circuitBreakerOpenMs) {
+    return new GooglePayNonceExchanger.Policy(maxAttempts, initialBackoffMs, maxBackoffMs, hedgeRequests,
+        circuitBreakerFailureThreshold, circuitBreakerOpenMs);
+  }
+
+  private static GooglePayNonceResult success(String nonce) {
+    return new GooglePayNonceResult.Success(TestCards.cardDetails(nonce));
+  }
+
+  private static GooglePayNonceResult networkError() {
+    return new GooglePayNonceResult.Error(GooglePayNonceResult.Error.Code.NO_NETWORK, "No network.",
+        "google_pay_no_network", "Offline.");
+  }
+
+  private static GooglePayNonceResult usageError() {
+    return new GooglePayNonceResult.Error(GooglePayNonceResult.Error.Code.USAGE_ERROR, "Token already used.",
+        "google_pay_usage_error", "Duplicate token.");
+  }
+
+  /** Holds each request's callback until the test answers it. */
+  private static final class FakeNonceRequester implements GooglePayNonceExchanger.NonceRequester {
+    private final List<Callback<GooglePayNonceResult>> callbacks = new ArrayList<>();
+
+    @Override
+    public void requestNonce(String googlePayToken, Callback<GooglePayNonceResult> callback) {
+      assertEquals(TOKEN, googlePayToken);
+      callbacks.add(callback);
+    }
+
+    int requests() {
+      return callbacks.size();
+    }
+
+    void respond(int request, GooglePayNonceResult result) {
+      callbacks.get(request).onResult(result);
+    }
+  }
+
+  private static final class RecordingListener implements GooglePayNonceExchanger.Listener {
+    final List<CardDetails> successes = new ArrayList<>();
+    final List<ErrorHandlerUtils.ErrorPayload> failures = new ArrayList<>();
+
+    @Override
+    public void onSuccess(CardDetails cardDetails) {
+      successes.add(cardDetails);
+    }
+
+    @Override
+    public void onFailure(ErrorHandlerUtils.ErrorPayload error) {
+      failures.add(error);
+    }
+  }
+
+  private static final class FixedRandom extends Random {
+    private final double value;
+
+    FixedRandom(double value) {
+      this.value = value;
+    }
+
+    @Override
+    public double nextDouble() {
+      return value;
+    }
+  }
+}
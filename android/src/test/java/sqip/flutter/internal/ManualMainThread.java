@@ -0,0 +1,103 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A main thread on virtual time: posted work only runs from {@link #advance(long)}, on the
+ * calling thread, and the shared {@link FakeClock} moves to each task's due time as it runs.
+ */
+final class ManualMainThread implements MainThread {
+  private final FakeClock clock;
+  private final List<ScheduledTask> tasks;
+  private long nextSequence;
+
+  ManualMainThread(FakeClock clock) {
+    this.clock = clock;
+    tasks = new ArrayList<>();
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return true;
+  }
+
+  @Override
+  public void post(Runnable task) {
+    postDelayed(task, 0);
+  }
+
+  @Override
+  public void postDelayed(Runnable task, long delayMs) {
+    tasks.add(new ScheduledTask(task, clock.millis() + Math.max(delayMs, 0), nextSequence++));
+  }
+
+  @Override
+  public void removeCallbacks(Runnable task) {
+    for (int i = tasks.size() - 1; i >= 0; i--) {
+      if (tasks.get(i).task == task) {
+        tasks.remove(i);
+      }
+    }
+  }
+
+  /** Returns how many tasks are waiting to run. */
+  int pendingTasks() {
+    return tasks.size();
+  }
+
+  /** Returns the delay from now until the next task is due, or -1 if none is waiting. */
+  long nextDelayMs() {
+    ScheduledTask next = next();
+    return next == null ? -1 : next.dueMs - clock.millis();
+  }
+
+  /** Moves time forward by {@code deltaMs}, running every task that falls due on the way. */
+  void advance(long deltaMs) {
+    long targetMs = clock.millis() + deltaMs;
+    ScheduledTask next;
+    while ((next = next()) != null && next.dueMs <= targetMs) {
+      tasks.remove(next);
+      clock.advance(next.dueMs - clock.millis());
+      next.task.run();
+    }
+    clock.advance(targetMs - clock.millis());
+  }
+
+  private ScheduledTask next() {
+    ScheduledTask next = null;
+    for (ScheduledTask task : tasks) {
+      if (next == null || task.dueMs < next.dueMs || (task.dueMs == next.dueMs && task.sequence < next.sequence)) {
+        next = task;
+      }
+    }
+    return next;
+  }
+
+  private static final class ScheduledTask {
+    final Runnable task;
+    final long dueMs;
+    final long sequence;
+
+    ScheduledTask(Runnable task, long dueMs, long sequence) {
+      this.task = task;
+      this.dueMs = dueMs;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MethodCallDispatcherTest {
+  private static final String BACKGROUND_THREAD_NAME = "sqip-flutter-method-calls";
+
+  private TestMainThread mainThread;
+  private MethodCallDispatcher dispatcher;
+  // Method name to the thread its module was requested on.
+  private final Map<String, String> moduleThreads = new ConcurrentHashMap<>();
+  // Calls made through call() run one at a time.
+  private volatile String currentMethod;
+
+  @Before
+  public void setUp() {
+    mainThread = new TestMainThread();
+    dispatcher = new MethodCallDispatcher(new PerformanceMetrics(), mainThread);
+  }
+
+  @After
+  public void tearDown() {
+    dispatcher.shutdown();
+    mainThread.shutdown();
+  }
+
+  @Test
+  public void onlyMethodsThatStartAnActivityRunOnTheMainThread() throws InterruptedException {
+    CardEntryModule.registerMethods(dispatcher, new RecordingModule<CardEntryModule>());
+    GooglePayModule.registerMethods(dispatcher, new RecordingModule<GooglePayModule>());
+
+    call("startCardEntryFlow", "collectPostalCode", true);
+    call("completeCardEntry", "requestId", 1);
+    call("showCardNonceProcessingError", "requestId", 1, "errorMessage", "Declined.");
+    call("initializeGooglePay", "squareLocationId", "LOCATION", "environment", 3);
+    call("canUseGooglePay");
+    call("setGooglePayRetryPolicy");
+    call("requestGooglePayNonce", "price", "1.00", "currencyCode", "USD", "priceStatus", 3);
+
+    Map<String, String> expected = new HashMap<>();
+    expected.put("startCardEntryFlow", TestMainThread.THREAD_NAME);
+    expected.put("completeCardEntry", BACKGROUND_THREAD_NAME);
+    expected.put("showCardNonceProcessingError", BACKGROUND_THREAD_NAME);
+    expected.put("initializeGooglePay", BACKGROUND_THREAD_NAME);
+    expected.put("canUseGooglePay", BACKGROUND_THREAD_NAME);
+    expected.put("setGooglePayRetryPolicy", BACKGROUND_THREAD_NAME);
+    expected.put("requestGooglePayNonce", TestMainThread.THREAD_NAME);
+    assertEquals(expected, moduleThreads);
+  }
+
+  @Test
+  public void resultsAreDeliveredOnTheMainThread() throws InterruptedException {
+    dispatcher.register("background", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        result.success("done");
+      }
+    });
+
+    FakeResult result = call("background");
+
+    assertEquals("done", result.value);
+    assertEquals(TestMainThread.THREAD_NAME, result.threadName);
+  }
+
+  @Test
+  public void unexpectedExceptionRepliesWithPluginErrorCode() throws InterruptedException {
+    dispatcher.register("broken", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        throw new IllegalStateException("bug");
+      }
+    });
+
+    FakeResult result = call("broken");
+
+    assertEquals(ErrorHandlerUtils.USAGE_ERROR, result.errorCode);
+    Map<?, ?> details = (Map<?, ?>) result.errorDetails;
+    assertEquals("fl_unexpected_error", details.get("debugCode"));
+    assertEquals("java.lang.IllegalStateException: bug", details.get("debugMessage"));
+  }
+
+  @Test
+  public void missingArgumentRepliesWithUsageError() throws InterruptedException {
+    dispatcher.register("needsArgument", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        result.success(MethodCallDispatcher.requireInt(call, "requestId"));
+      }
+    });
+
+    FakeResult result = call("needsArgument");
+
+    assertEquals(ErrorHandlerUtils.USAGE_ERROR, result.errorCode);
+    assertEquals("fl_missing_argument", ((Map<?, ?>) result.errorDetails).get("debugCode"));
+  }
+
+  @Test
+  public void unknownMethodIsNotImplemented() throws InterruptedException {
+    assertTrue(call("unknown").notImplemented);
+  }
+
+  @Test
+  public void mainThreadCallQueuedBeforeShutdownDoesNotRun() throws InterruptedException {
+    final AtomicBoolean invoked = new AtomicBoolean();
+    dispatcher.registerOnMainThread("onMain", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        invoked.set(true);
+        result.success(null);
+      }
+    });
+    final CountDownLatch backgroundRan = new CountDownLatch(1);
+    dispatcher.register("background", new MethodCallDispatcher.MethodHandler() {
+      @Override public void onMethodCall(MethodCall call, MethodChannel.Result result) {
+        backgroundRan.countDown();
+      }
+    });
+    final CountDownLatch unblockMainThread = new CountDownLatch(1);
+    mainThread.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          unblockMainThread.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    FakeResult result = new FakeResult();
+    dispatcher.onMethodCall(new MethodCall("onMain", null), result);
+    // Calls run in order, so once this one has run the main thread call has been posted.
+    dispatcher.onMethodCall(new MethodCall("background", null), new FakeResult());
+    assertTrue(backgroundRan.await(5, TimeUnit.SECONDS));
+    dispatcher.shutdown();
+    unblockMainThread.countDown();
+    mainThread.awaitIdle();
+
+    assertFalse(invoked.get());
+    assertFalse(result.hasReplied());
+  }
+
+  private FakeResult call(String method, Object... keysAndValues) throws InterruptedException {
+    Map<String, Object> arguments = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      arguments.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    currentMethod = method;
+    FakeResult result = new FakeResult();
+    dispatcher.onMethodCall(new MethodCall(method, arguments), result);
+    return result.await();
+  }
+
+  /** Records the thread the current call asks for its module on, then fails the call. */
+  private final class RecordingModule<T> extends LazyModule<T> {
+    @Override protected T create() {
+      moduleThreads.put(currentMethod, Thread.currentThread().getName());
+      throw new IllegalStateException("Not created in tests.");
+    }
+  }
+}
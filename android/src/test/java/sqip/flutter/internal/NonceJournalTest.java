@@ -0,0 +1,192 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sqip.CardDetails;
+import sqip.flutter.internal.converter.CardConverter;
+import sqip.flutter.internal.converter.CardDetailsConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NonceJournalTest {
+  private static final long START_MS = 1546300800000L;
+  // Matches NonceJournal.RECORD_COUNT.
+  private static final int RECORD_COUNT = 128;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final CardDetailsConverter cardDetailsConverter = new CardDetailsConverter(new CardConverter());
+  private final List<NonceJournal> journals = new ArrayList<>();
+  private FakeClock clock;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    clock = new FakeClock(START_MS);
+    file = new File(temporaryFolder.getRoot(), "journal");
+  }
+
+  @After
+  public void tearDown() {
+    for (NonceJournal journal : journals) {
+      journal.close();
+    }
+  }
+
+  @Test
+  public void appendedNonceIsRecoveredByTheNextProcess() throws InterruptedException {
+    NonceJournal journal = newJournal();
+    CardDetails cardDetails = TestCards.cardDetails("cnon:first");
+    journal.append(NonceJournal.SOURCE_GOOGLE_PAY, cardDetails);
+    recover(journal);
+
+    // A second journal on the same file sees what the first one wrote, as a restarted process would.
+    List<Map<?, ?>> records = recover(newJournal());
+
+    assertEquals(1, records.size());
+    assertEquals(NonceJournal.SOURCE_GOOGLE_PAY, records.get(0).get("source"));
+    assertEquals(START_MS, records.get(0).get("obtainedAt"));
+    assertArrayEquals(cardDetailsConverter.toByteArray(cardDetails, 0), (byte[]) records.get(0).get("cardDetails"));
+  }
+
+  @Test
+  public void disabledJournalRecordsNothing() throws InterruptedException {
+    NonceJournal journal = new NonceJournal(file, clock);
+    journals.add(journal);
+    journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:ignored"));
+
+    assertTrue(recover(journal).isEmpty());
+  }
+
+  @Test
+  public void acknowledgedNonceIsNotRecovered() throws InterruptedException {
+    NonceJournal journal = newJournal();
+    journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:charged"));
+    journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:pending"));
+    journal.acknowledge("cnon:charged");
+
+    List<Map<?, ?>> records = recover(journal);
+
+    assertEquals(1, records.size());
+    assertNonce("cnon:pending", records.get(0));
+  }
+
+  @Test
+  public void fullJournalCompactsAcknowledgedRecordsAndKeepsOrder() throws InterruptedException {
+    NonceJournal journal = newJournal();
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:" + i));
+      if (i != 7) {
+        journal.acknowledge("cnon:" + i);
+      }
+    }
+    // No free slot left, so this append compacts the acknowledged records away first.
+    journal.append(NonceJournal.SOURCE_GOOGLE_PAY, TestCards.cardDetails("cnon:after-compaction"));
+
+    List<Map<?, ?>> records = recover(journal);
+
+    assertEquals(2, records.size());
+    assertNonce("cnon:7", records.get(0));
+    assertNonce("cnon:after-compaction", records.get(1));
+  }
+
+  @Test
+  public void journalFullOfPendingNoncesDropsNewOnes() throws InterruptedException {
+    NonceJournal journal = newJournal();
+    for (int i = 0; i <= RECORD_COUNT; i++) {
+      journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:" + i));
+    }
+
+    List<Map<?, ?>> records = recover(journal);
+
+    assertEquals(RECORD_COUNT, records.size());
+    assertNonce("cnon:0", records.get(0));
+    assertNonce("cnon:" + (RECORD_COUNT - 1), records.get(RECORD_COUNT - 1));
+  }
+
+  @Test
+  public void expiredNonceIsNotRecovered() throws InterruptedException {
+    NonceJournal journal = newJournal();
+    journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:old"));
+    clock.advance(TimeUnit.HOURS.toMillis(23));
+    journal.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:recent"));
+    clock.advance(TimeUnit.HOURS.toMillis(1) + 1);
+
+    List<Map<?, ?>> records = recover(journal);
+
+    assertEquals(1, records.size());
+    assertNonce("cnon:recent", records.get(0));
+  }
+
+  @Test
+  public void enginesShareOneJournalUntilTheLastRelease() throws InterruptedException {
+    Context context = new ContextWrapper(null) {
+      @Override public File getFilesDir() {
+        return temporaryFolder.getRoot();
+      }
+    };
+
+    NonceJournal first = NonceJournal.acquire(context);
+    NonceJournal second = NonceJournal.acquire(context);
+    assertSame(first, second);
+
+    first.release();
+    second.setEnabled(true);
+    second.append(NonceJournal.SOURCE_CARD_ENTRY, TestCards.cardDetails("cnon:shared"));
+    assertEquals(1, recover(second).size());
+
+    second.release();
+    NonceJournal third = NonceJournal.acquire(context);
+    assertNotSame(first, third);
+    third.release();
+  }
+
+  private NonceJournal newJournal() {
+    NonceJournal journal = new NonceJournal(file, clock);
+    journal.setEnabled(true);
+    journals.add(journal);
+    return journal;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<?, ?>> recover(NonceJournal journal) throws InterruptedException {
+    FakeResult result = new FakeResult();
+    journal.recover(result);
+    return (List<Map<?, ?>>) result.await().value;
+  }
+
+  private void assertNonce(String nonce, Map<?, ?> record) {
+    assertArrayEquals(cardDetailsConverter.toByteArray(TestCards.cardDetails(nonce), 0),
+        (byte[]) record.get("cardDetails"));
+  }
+}
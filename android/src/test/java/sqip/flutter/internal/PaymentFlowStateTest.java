@@ -0,0 +1,153 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PaymentFlowStateTest {
+  private static final int THREADS = 8;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void onlyOneOfConcurrentStartsWins() throws Exception {
+    for (int round = 0; round < 500; round++) {
+      final PaymentFlowState flowState = new PaymentFlowState();
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Boolean>> starts = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        starts.add(executor.submit(new Callable<Boolean>() {
+          @Override public Boolean call() throws InterruptedException {
+            start.await();
+            return flowState.tryStart();
+          }
+        }));
+      }
+      start.countDown();
+
+      int wins = 0;
+      for (Future<Boolean> result : starts) {
+        if (result.get(5, TimeUnit.SECONDS)) {
+          wins++;
+        }
+      }
+      assertEquals(1, wins);
+      assertEquals(PaymentFlowState.State.LAUNCHING, flowState.get());
+    }
+  }
+
+  @Test
+  public void flowsNeverOverlapWhileThreadsStartAndFinishThem() throws Exception {
+    final PaymentFlowState flowState = new PaymentFlowState();
+    final AtomicInteger activeFlows = new AtomicInteger();
+    final AtomicInteger overlappingFlows = new AtomicInteger();
+    final AtomicInteger completedFlows = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      workers.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws InterruptedException {
+          start.await();
+          for (int attempt = 0; attempt < 20000; attempt++) {
+            if (!flowState.tryStart()) {
+              continue;
+            }
+            if (activeFlows.incrementAndGet() > 1) {
+              overlappingFlows.incrementAndGet();
+            }
+            assertTrue(flowState.transition(PaymentFlowState.State.LAUNCHING, PaymentFlowState.State.AWAITING_NONCE));
+            assertTrue(flowState.transition(PaymentFlowState.State.AWAITING_NONCE, PaymentFlowState.State.PROCESSING));
+            activeFlows.decrementAndGet();
+            completedFlows.incrementAndGet();
+            // The flow's owner resets it, as the modules do once Dart has the outcome.
+            flowState.moveTo(PaymentFlowState.State.IDLE);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<Void> worker : workers) {
+      worker.get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals(0, overlappingFlows.get());
+    assertTrue(completedFlows.get() > 0);
+    assertEquals(PaymentFlowState.State.IDLE, flowState.get());
+  }
+
+  @Test
+  public void resetRacingAStaleTransitionLeavesTheFlowIdle() throws Exception {
+    for (int round = 0; round < 500; round++) {
+      final PaymentFlowState flowState = new PaymentFlowState();
+      assertTrue(flowState.tryStart());
+      final CountDownLatch start = new CountDownLatch(1);
+      // A late launch completion racing the failure path that resets the flow.
+      Future<Boolean> lateTransition = executor.submit(new Callable<Boolean>() {
+        @Override public Boolean call() throws InterruptedException {
+          start.await();
+          return flowState.transition(PaymentFlowState.State.LAUNCHING, PaymentFlowState.State.AWAITING_NONCE);
+        }
+      });
+      Future<Void> reset = executor.submit(new Callable<Void>() {
+        @Override public Void call() throws InterruptedException {
+          start.await();
+          flowState.moveTo(PaymentFlowState.State.IDLE);
+          return null;
+        }
+      });
+      start.countDown();
+      boolean transitioned = lateTransition.get(5, TimeUnit.SECONDS);
+      reset.get(5, TimeUnit.SECONDS);
+
+      // Either order, the flow can't be left past IDLE by a transition that ran after the reset.
+      if (flowState.get() != PaymentFlowState.State.IDLE) {
+        fail("Flow left in " + flowState.get() + ", transitioned: " + transitioned);
+      }
+      assertTrue(flowState.tryStart());
+    }
+  }
+
+  @Test
+  public void transitionFromAnotherStateIsIgnored() {
+    PaymentFlowState flowState = new PaymentFlowState();
+
+    assertFalse(flowState.transition(PaymentFlowState.State.PROCESSING, PaymentFlowState.State.IDLE));
+    assertEquals(PaymentFlowState.State.IDLE, flowState.get());
+    assertTrue(flowState.tryStart());
+    assertFalse(flowState.tryStart());
+  }
+}
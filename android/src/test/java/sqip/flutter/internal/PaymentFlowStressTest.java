@@ -0,0 +1,392 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import io.flutter.plugin.common.MethodCall;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sqip.CardEntryActivityCommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the dispatcher and both modules through the fake SDKs from plain JVM threads, while the
+ * activity is recreated underneath them, and prints throughput and latency for each scenario.
+ * The plugin's threads must all be gone once it is detached.
+ *
+ * <p>Run longer with {@code -Dsqip.stress.scale=20}.
+ */
+public class PaymentFlowStressTest {
+  private static final int SCALE = Integer.getInteger("sqip.stress.scale", 1);
+  private static final int SUBMITTING_THREADS = 8;
+  private static final String FINAL_NONCE_SUFFIX = "-final";
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Set<Thread> threadsBeforeAttach;
+  private TestMainThread mainThread;
+  private FakeMethodChannel channel;
+  private FakeActivityProvider activityProvider;
+  private FakeCardEntrySdk cardEntrySdk;
+  private FakeGooglePaySdk googlePaySdk;
+  private MethodCallDispatcher dispatcher;
+  private LazyModule<CardEntryModule> cardEntryModule;
+  private LazyModule<GooglePayModule> googlePayModule;
+  private NonceJournal nonceJournal;
+  private RecentCardCache recentCardCache;
+  private ExecutorService workers;
+  private Thread configurationChanger;
+  private volatile boolean changingConfiguration;
+  private boolean detached;
+
+  @Before
+  public void setUp() {
+    threadsBeforeAttach = new HashSet<>(Thread.getAllStackTraces().keySet());
+    // The card entry theme can't be inflated on the JVM.
+    CardEntryModule.setCloseExitAnimationDurationMs(0);
+    mainThread = new TestMainThread();
+    channel = new FakeMethodChannel(mainThread);
+    final EventDispatcher eventDispatcher = new EventDispatcher(channel, mainThread);
+    final PaymentEventStream paymentEventStream = new PaymentEventStream(eventDispatcher);
+    final ActivityResultRouter activityResultRouter = new ActivityResultRouter();
+    final PerformanceMetrics performanceMetrics = new PerformanceMetrics();
+    activityProvider = new FakeActivityProvider();
+    cardEntrySdk = new FakeCardEntrySdk(activityResultRouter, mainThread);
+    googlePaySdk = new FakeGooglePaySdk(activityResultRouter, mainThread);
+    nonceJournal = new NonceJournal(new File(temporaryFolder.getRoot(), "journal"), Clock.WALL);
+    nonceJournal.setEnabled(true);
+    recentCardCache = new RecentCardCache(new File(temporaryFolder.getRoot(), "recent_cards"), Clock.WALL);
+    cardEntryModule = new LazyModule<CardEntryModule>() {
+      @Override protected CardEntryModule create() {
+        return new CardEntryModule(null, activityProvider, eventDispatcher, paymentEventStream, nonceJournal,
+            recentCardCache, activityResultRouter, performanceMetrics, cardEntrySdk, mainThread);
+      }
+    };
+    googlePayModule = new LazyModule<GooglePayModule>() {
+      @Override protected GooglePayModule create() {
+        return new GooglePayModule(null, activityProvider, eventDispatcher, paymentEventStream, nonceJournal,
+            recentCardCache, activityResultRouter, performanceMetrics, googlePaySdk, mainThread, Clock.WALL);
+      }
+    };
+    dispatcher = new MethodCallDispatcher(performanceMetrics, mainThread);
+    CardEntryModule.registerMethods(dispatcher, cardEntryModule);
+    GooglePayModule.registerMethods(dispatcher, googlePayModule);
+    workers = Executors.newFixedThreadPool(SUBMITTING_THREADS);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    detach();
+  }
+
+  @Test
+  public void concurrentCardEntrySubmissionsThroughConfigurationChanges() throws Exception {
+    final int rounds = 20 * SCALE;
+    final int submissionsPerThread = 25;
+    final Semaphore closed = new Semaphore(0);
+    channel.setListener(new FakeMethodChannel.Listener() {
+      @Override public void onEvent(String method, Object arguments) {
+        if ("cardEntryDidObtainCardDetails".equals(method)) {
+          Map<?, ?> cardDetails = (Map<?, ?>) arguments;
+          String nonce = (String) cardDetails.get("nonce");
+          Object requestId = cardDetails.get("requestId");
+          // Dart rejects every card with its own nonce as the message, except each round's last one.
+          if (nonce.endsWith(FINAL_NONCE_SUFFIX)) {
+            dispatcher.onMethodCall(call("completeCardEntry", "requestId", requestId), new FakeResult());
+          } else {
+            dispatcher.onMethodCall(
+                call("showCardNonceProcessingError", "requestId", requestId, "errorMessage", nonce), new FakeResult());
+          }
+        } else if ("cardEntryComplete".equals(method)) {
+          closed.release();
+        }
+      }
+    });
+    LatencyRecorder latencies = new LatencyRecorder();
+    int rejectedStarts = 0;
+
+    startChangingConfiguration();
+    long startNanos = System.nanoTime();
+    for (int round = 0; round < rounds; round++) {
+      while (!succeeded(callFromDart("startCardEntryFlow", "collectPostalCode", false))) {
+        rejectedStarts++;
+      }
+      List<Future<Void>> submitters = new ArrayList<>();
+      for (int thread = 0; thread < SUBMITTING_THREADS; thread++) {
+        submitters.add(workers.submit(submitter(round + "-" + thread, submissionsPerThread, latencies)));
+      }
+      for (Future<Void> submitter : submitters) {
+        submitter.get(30, TimeUnit.SECONDS);
+      }
+      String finalNonce = "cnon:" + round + FINAL_NONCE_SUFFIX;
+      CardEntryActivityCommand command = cardEntrySdk.submit(TestCards.cardDetails(finalNonce));
+      assertTrue(command instanceof CardEntryActivityCommand.Finish);
+      cardEntrySdk.finish(TestCards.cardDetails(finalNonce));
+      assertTrue("Card entry never closed.", closed.tryAcquire(5, TimeUnit.SECONDS));
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    stopChangingConfiguration();
+
+    latencies.report("card entry submissions", elapsedNanos);
+    System.out.println(String.format(Locale.US, "  %d rounds, %d starts rejected during %d configuration changes",
+        rounds, rejectedStarts, activityProvider.configurationChanges()));
+    assertEquals(rounds * SUBMITTING_THREADS * submissionsPerThread, latencies.count());
+    assertEquals(rounds, cardEntrySdk.launches());
+    assertEquals(0, channel.offMainThreadInvocations());
+    assertNoThreadsLeakAfterDetach();
+  }
+
+  @Test
+  public void repeatedGooglePayNonceRequestsThroughConfigurationChanges() throws Exception {
+    final int requests = 200 * SCALE;
+    assertTrue(succeeded(callFromDart("initializeGooglePay", "squareLocationId", "LOCATION", "environment", 3)));
+    assertTrue(succeeded(callFromDart("setGooglePayRetryPolicy", "initialBackoffMs", 1L, "maxBackoffMs", 2L)));
+    LatencyRecorder latencies = new LatencyRecorder();
+    int injectedFailures = 0;
+    int rejected = 0;
+
+    startChangingConfiguration();
+    long startNanos = System.nanoTime();
+    for (int request = 0; request < requests; request++) {
+      if (request % 10 == 0) {
+        googlePaySdk.failNextNonceRequests(1);
+        injectedFailures++;
+      }
+      long requestStartNanos = System.nanoTime();
+      boolean succeeded = false;
+      while (!succeeded) {
+        // A second tap while the sheet is up must be turned away, not show another sheet.
+        FakeResult[] taps = { sendFromDart(googlePayNonceCall(request)), sendFromDart(googlePayNonceCall(request)) };
+        awaitRepliesOrSheets(taps);
+        assertTrue(googlePaySdk.sheetsShown() <= 1);
+        if (googlePaySdk.sheetsShown() == 1) {
+          googlePaySdk.confirmSheet();
+        }
+        for (FakeResult tap : taps) {
+          if (succeeded(tap.await())) {
+            assertTrue(((String) ((Map<?, ?>) tap.value).get("nonce")).startsWith("cnon:token-"));
+            assertFalse(succeeded);
+            succeeded = true;
+          } else {
+            rejected++;
+          }
+        }
+      }
+      latencies.record(requestStartNanos);
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    stopChangingConfiguration();
+
+    latencies.report("google pay nonce requests", elapsedNanos);
+    System.out.println(String.format(Locale.US, "  %d calls rejected during %d configuration changes", rejected,
+        activityProvider.configurationChanges()));
+    assertEquals(requests, googlePaySdk.sheets());
+    assertEquals(requests + injectedFailures, googlePaySdk.nonceRequests());
+    assertEquals(0, channel.offMainThreadInvocations());
+    assertNoThreadsLeakAfterDetach();
+  }
+
+  /** Waits until each tap has either been answered or put a sheet up. */
+  private void awaitRepliesOrSheets(FakeResult[] taps) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      int settled = googlePaySdk.sheetsShown();
+      for (FakeResult tap : taps) {
+        if (tap.hasReplied()) {
+          settled++;
+        }
+      }
+      if (settled >= taps.length) {
+        return;
+      }
+      assertTrue("Taps neither answered nor showed a sheet.", System.nanoTime() < deadlineNanos);
+      Thread.sleep(0, 100000);
+    }
+  }
+
+  private Callable<Void> submitter(final String name, final int submissions, final LatencyRecorder latencies) {
+    return new Callable<Void>() {
+      @Override public Void call() {
+        for (int i = 0; i < submissions; i++) {
+          String nonce = "cnon:" + name + "-" + i;
+          long startNanos = System.nanoTime();
+          CardEntryActivityCommand command = cardEntrySdk.submit(TestCards.cardDetails(nonce));
+          latencies.record(startNanos);
+          // Each submission must get the reply Dart sent for its own nonce.
+          assertEquals(nonce, ((CardEntryActivityCommand.ShowError) command).getMessage());
+        }
+        return null;
+      }
+    };
+  }
+
+  private MethodCall googlePayNonceCall(int requestId) {
+    return call("requestGooglePayNonce", "price", "1.00", "currencyCode", "USD", "priceStatus", 3,
+        "requestId", requestId, "awaitResult", true);
+  }
+
+  private FakeResult callFromDart(String method, Object... keysAndValues) throws InterruptedException {
+    return sendFromDart(call(method, keysAndValues)).await();
+  }
+
+  /** Dart's method calls arrive on the main thread. */
+  private FakeResult sendFromDart(final MethodCall call) {
+    final FakeResult result = new FakeResult();
+    mainThread.post(new Runnable() {
+      @Override
+      public void run() {
+        dispatcher.onMethodCall(call, result);
+      }
+    });
+    return result;
+  }
+
+  private static MethodCall call(String method, Object... keysAndValues) {
+    Map<String, Object> arguments = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      arguments.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return new MethodCall(method, arguments);
+  }
+
+  private static boolean succeeded(FakeResult result) {
+    if (result.errorCode == null) {
+      return true;
+    }
+    String debugCode = (String) ((Map<?, ?>) result.errorDetails).get("debugCode");
+    assertTrue("Unexpected error: " + debugCode, ErrorHandlerUtils.FL_NO_ACTIVITY.equals(debugCode)
+        || "fl_google_pay_already_in_progress".equals(debugCode));
+    return false;
+  }
+
+  private void startChangingConfiguration() {
+    changingConfiguration = true;
+    configurationChanger = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (changingConfiguration) {
+            activityProvider.detach();
+            Thread.sleep(1);
+            activityProvider.attach();
+            Thread.sleep(1);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        activityProvider.attach();
+      }
+    }, "configuration-changer");
+    configurationChanger.start();
+  }
+
+  private void stopChangingConfiguration() throws InterruptedException {
+    changingConfiguration = false;
+    configurationChanger.join();
+  }
+
+  /** Releases everything the way the plugin does in onDetachedFromEngine. */
+  private void detach() throws InterruptedException {
+    if (detached) {
+      return;
+    }
+    detached = true;
+    if (configurationChanger != null) {
+      stopChangingConfiguration();
+    }
+    channel.setListener(null);
+    dispatcher.shutdown();
+    CardEntryModule releasedCardEntryModule = cardEntryModule.release();
+    if (releasedCardEntryModule != null) {
+      releasedCardEntryModule.release();
+    }
+    GooglePayModule releasedGooglePayModule = googlePayModule.release();
+    if (releasedGooglePayModule != null) {
+      releasedGooglePayModule.release();
+    }
+    nonceJournal.close();
+    recentCardCache.close();
+    workers.shutdown();
+    mainThread.shutdown();
+  }
+
+  private void assertNoThreadsLeakAfterDetach() throws InterruptedException {
+    detach();
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    List<String> leaked;
+    do {
+      leaked = new ArrayList<>();
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.isAlive() && !threadsBeforeAttach.contains(thread)) {
+          leaked.add(thread.getName());
+        }
+      }
+      if (leaked.isEmpty()) {
+        break;
+      }
+      Thread.sleep(10);
+    } while (System.nanoTime() < deadlineNanos);
+    System.out.println("  leaked threads: " + leaked);
+    assertEquals(Collections.<String>emptyList(), leaked);
+  }
+
+  private static final class LatencyRecorder {
+    private final List<Long> latencyNanos = new ArrayList<>();
+
+    synchronized void record(long startNanos) {
+      latencyNanos.add(System.nanoTime() - startNanos);
+    }
+
+    synchronized int count() {
+      return latencyNanos.size();
+    }
+
+    synchronized void report(String name, long elapsedNanos) {
+      List<Long> sorted = new ArrayList<>(latencyNanos);
+      Collections.sort(sorted);
+      System.out.println(String.format(Locale.US, "%s: %d in %d ms, %.0f/s, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+          name, sorted.size(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+          sorted.size() * 1e9 / elapsedNanos, percentileMillis(sorted, 0.5), percentileMillis(sorted, 0.99),
+          percentileMillis(sorted, 1)));
+    }
+
+    private static double percentileMillis(List<Long> sorted, double percentile) {
+      int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+      return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+  }
+}
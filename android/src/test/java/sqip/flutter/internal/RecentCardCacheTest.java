@@ -0,0 +1,179 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sqip.Card;
+import sqip.flutter.internal.converter.BinaryCodec;
+import sqip.flutter.internal.converter.CardConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecentCardCacheTest {
+  private static final long START_MS = 1546300800000L;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final CardConverter cardConverter = new CardConverter();
+  private final List<RecentCardCache> caches = new ArrayList<>();
+  private final Card visa = TestCards.card(Card.Brand.VISA, "1111", "94103");
+  private final Card amex = TestCards.card(Card.Brand.AMERICAN_EXPRESS, "0005", "10001");
+  private FakeClock clock;
+  private File file;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(START_MS);
+    file = new File(temporaryFolder.getRoot(), "recent_cards");
+  }
+
+  @After
+  public void tearDown() {
+    for (RecentCardCache cache : caches) {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void recentCardsAreReturnedLeastRecentlyUsedFirst() throws Exception {
+    RecentCardCache cache = newCache();
+    cache.add(visa);
+    clock.advance(1000);
+    cache.add(amex);
+    clock.advance(1000);
+    cache.add(visa);
+
+    List<Long> lastUsedAtMs = new ArrayList<>();
+    List<byte[]> cards = getRecentCards(cache, lastUsedAtMs);
+
+    assertEquals(2, cards.size());
+    assertArrayEquals(cardConverter.toSummaryByteArray(amex), cards.get(0));
+    assertArrayEquals(cardConverter.toSummaryByteArray(visa), cards.get(1));
+    assertEquals(START_MS + 1000, (long) lastUsedAtMs.get(0));
+    assertEquals(START_MS + 2000, (long) lastUsedAtMs.get(1));
+  }
+
+  @Test
+  public void cardsExpireAfterThirtyDays() throws Exception {
+    RecentCardCache cache = newCache();
+    cache.add(visa);
+    clock.advance(TimeUnit.DAYS.toMillis(1));
+    cache.add(amex);
+    clock.advance(TimeUnit.DAYS.toMillis(29) + 1);
+
+    List<byte[]> cards = getRecentCards(cache, new ArrayList<Long>());
+
+    assertEquals(1, cards.size());
+    assertArrayEquals(cardConverter.toSummaryByteArray(amex), cards.get(0));
+  }
+
+  @Test
+  public void persistedCardsAreLoadedByTheNextProcess() throws Exception {
+    RecentCardCache cache = newCache();
+    cache.setPersistenceEnabled(true);
+    cache.add(visa);
+    // Reads run after the writes queued before them.
+    getRecentCards(cache, new ArrayList<Long>());
+    assertTrue(file.exists());
+
+    RecentCardCache restarted = newCache();
+    restarted.setPersistenceEnabled(true);
+    List<byte[]> cards = getRecentCards(restarted, new ArrayList<Long>());
+
+    assertEquals(1, cards.size());
+    assertArrayEquals(cardConverter.toSummaryByteArray(visa), cards.get(0));
+  }
+
+  @Test
+  public void closedCacheRepliesWithNoCards() throws Exception {
+    RecentCardCache cache = newCache();
+    cache.add(visa);
+    cache.close();
+
+    FakeResult result = new FakeResult();
+    cache.getRecentCards(result);
+
+    assertTrue(result.hasReplied());
+    assertTrue(decode((byte[]) result.value, new ArrayList<Long>()).isEmpty());
+  }
+
+  @Test
+  public void enginesShareOneCacheUntilTheLastRelease() throws Exception {
+    Context context = new ContextWrapper(null) {
+      @Override public File getFilesDir() {
+        return temporaryFolder.getRoot();
+      }
+    };
+
+    RecentCardCache first = RecentCardCache.acquire(context);
+    RecentCardCache second = RecentCardCache.acquire(context);
+    assertSame(first, second);
+
+    first.release();
+    second.add(visa);
+    assertEquals(1, getRecentCards(second, new ArrayList<Long>()).size());
+
+    second.release();
+    RecentCardCache third = RecentCardCache.acquire(context);
+    assertNotSame(first, third);
+    third.release();
+  }
+
+  private RecentCardCache newCache() {
+    RecentCardCache cache = new RecentCardCache(file, clock);
+    caches.add(cache);
+    return cache;
+  }
+
+  private static List<byte[]> getRecentCards(RecentCardCache cache, List<Long> lastUsedAtMs)
+      throws InterruptedException, IOException {
+    FakeResult result = new FakeResult();
+    cache.getRecentCards(result);
+    return decode((byte[]) result.await().value, lastUsedAtMs);
+  }
+
+  private static List<byte[]> decode(byte[] payload, List<Long> lastUsedAtMs) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+    assertEquals(BinaryCodec.TAG_RECENT_CARDS, input.readByte());
+    int count = input.readUnsignedByte();
+    List<byte[]> cards = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      lastUsedAtMs.add(input.readLong());
+      byte[] card = new byte[input.readUnsignedShort()];
+      input.readFully(card);
+      cards.add(card);
+    }
+    assertEquals(-1, input.read());
+    return cards;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import sqip.Card;
+import sqip.CardDetails;
+
+/** SDK card values for the JVM tests. */
+public final class TestCards {
+  private TestCards() {
+  }
+
+  public static Card card(Card.Brand brand, String lastFourDigits, String postalCode) {
+    return new Card(lastFourDigits, 12, 2030, postalCode, brand, Card.Type.CREDIT, Card.PrepaidType.NOT_PREPAID);
+  }
+
+  public static Card card(Card.Brand brand, String lastFourDigits, int expirationMonth, int expirationYear,
+      String postalCode, Card.Type type, Card.PrepaidType prepaidType) {
+    return new Card(lastFourDigits, expirationMonth, expirationYear, postalCode, brand, type, prepaidType);
+  }
+
+  public static CardDetails cardDetails(String nonce) {
+    return new CardDetails(nonce, card(Card.Brand.VISA, "1111", "94103"));
+  }
+
+  public static CardDetails cardDetails(String nonce, Card card) {
+    return new CardDetails(nonce, card);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/** The main thread for the JVM tests: one thread named "main-thread" that runs posted work in order. */
+public final class TestMainThread implements MainThread {
+  public static final String THREAD_NAME = "main-thread";
+
+  private final ScheduledExecutorService executor;
+  private final Map<Runnable, ScheduledFuture<?>> delayedTasks;
+  private volatile Thread thread;
+
+  public TestMainThread() {
+    delayedTasks = new ConcurrentHashMap<>();
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        thread = new Thread(runnable, THREAD_NAME);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  @Override
+  public void post(Runnable task) {
+    executor.execute(task);
+  }
+
+  @Override
+  public void postDelayed(final Runnable task, long delayMs) {
+    delayedTasks.put(task, executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        delayedTasks.remove(task);
+        task.run();
+      }
+    }, delayMs, TimeUnit.MILLISECONDS));
+  }
+
+  @Override
+  public void removeCallbacks(Runnable task) {
+    ScheduledFuture<?> future = delayedTasks.remove(task);
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+  /** Waits until everything posted so far, but not delayed, has run. */
+  public void awaitIdle() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    post(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    });
+    assertTrue("The main thread is stuck.", latch.await(5, TimeUnit.SECONDS));
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ Copyright 2018 Square Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package sqip.flutter.internal.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import sqip.Card;
+import sqip.CardDetails;
+import sqip.flutter.internal.ErrorHandlerUtils;
+import sqip.flutter.internal.TestCards;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes the binary payloads the way lib/src/binary_codec.dart does and checks they carry
+ * exactly what the map format carries.
+ */
+public class BinaryCodecTest {
+  // Copied from the Dart enum declarations in models.dart, which fix the wire ordinals.
+  private static final List<String> DART_BRANDS = Arrays.asList("OTHER_BRAND", "VISA", "MASTERCARD",
+      "AMERICAN_EXPRESS", "DISCOVER", "DISCOVER_DINERS", "JCB", "CHINA_UNION_PAY");
+  private static final List<String> DART_CARD_TYPES = Arrays.asList("DEBIT", "CREDIT", "UNKNOWN");
+  private static final List<String> DART_CARD_PREPAID_TYPES = Arrays.asList("PREPAID", "NOT_PREPAID", "UNKNOWN");
+
+  private final CardConverter cardConverter = new CardConverter();
+  private final CardDetailsConverter cardDetailsConverter = new CardDetailsConverter(cardConverter);
+
+  @Test
+  public void cardDetailsRoundTripMatchesMapFormatForEveryEnumValue() throws IOException {
+    for (Card.Brand brand : Card.Brand.values()) {
+      for (Card.Type type : Card.Type.values()) {
+        for (Card.PrepaidType prepaidType : Card.PrepaidType.values()) {
+          Card card = TestCards.card(brand, "4242", 7, 2031, "94103", type, prepaidType);
+          assertCardDetailsRoundTrip(TestCards.cardDetails("cnon:" + brand + type + prepaidType, card), 7);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void cardDetailsRoundTripKeepsNullAndNonAsciiStrings() throws IOException {
+    Card card = TestCards.card(Card.Brand.JCB, "0005", 1, 2099, null, Card.Type.UNKNOWN, Card.PrepaidType.UNKNOWN);
+    assertCardDetailsRoundTrip(TestCards.cardDetails("cnon:\u00e9-\u00fc-\u65e5\u672c", card), 0);
+    assertCardDetailsRoundTrip(TestCards.cardDetails("", TestCards.card(Card.Brand.VISA, "1111", "")), Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void reusedBufferDoesNotLeakPreviousPayload() throws IOException {
+    cardDetailsConverter.toByteArray(TestCards.cardDetails("cnon:a-much-longer-nonce-than-the-next-one"), 1);
+    assertCardDetailsRoundTrip(TestCards.cardDetails("cnon:short"), 2);
+  }
+
+  @Test
+  public void errorInfoRoundTripMatchesCallbackErrorObject() throws IOException {
+    ErrorHandlerUtils.ErrorPayload error =
+        ErrorHandlerUtils.createSdkError("NO_NETWORK", "No network.", "google_pay_no_network", "Offline.");
+    byte[] bytes = BinaryCodec.encodeErrorInfo(9, error.getCode(), error.getMessage(),
+        error.getDebugCode(), error.getDebugMessage());
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    assertEquals(BinaryCodec.TAG_ERROR_INFO, input.readByte());
+    assertEquals(9, input.readInt());
+    Map<String, Object> decoded = new LinkedHashMap<>();
+    decoded.put("code", readString(input));
+    decoded.put("message", readString(input));
+    decoded.put("debugCode", readString(input));
+    decoded.put("debugMessage", readString(input));
+    assertEquals(-1, input.read());
+    assertEquals(error.getCallbackErrorObject(), decoded);
+  }
+
+  @Test
+  public void recentCardsRoundTripMatchesCardMapWithoutPostalCode() throws IOException {
+    Card visa = TestCards.card(Card.Brand.VISA, "1111", "94103");
+    Card amex = TestCards.card(Card.Brand.AMERICAN_EXPRESS, "0005", 3, 2027, "10001", Card.Type.CREDIT,
+        Card.PrepaidType.PREPAID);
+    byte[] bytes = BinaryCodec.encodeRecentCards(new long[] { 1000L, 2000L },
+        new byte[][] { cardConverter.toSummaryByteArray(visa), cardConverter.toSummaryByteArray(amex) });
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    assertEquals(BinaryCodec.TAG_RECENT_CARDS, input.readByte());
+    assertEquals(2, input.readUnsignedByte());
+    for (Card card : Arrays.asList(visa, amex)) {
+      input.readLong();
+      input.readUnsignedShort();
+      Map<String, Object> expected = cardConverter.toMapObject(card);
+      expected.put("postalCode", null);
+      assertEquals(expected, readCard(input));
+    }
+    assertEquals(-1, input.read());
+  }
+
+  private void assertCardDetailsRoundTrip(CardDetails cardDetails, int requestId) throws IOException {
+    byte[] bytes = cardDetailsConverter.toByteArray(cardDetails, requestId);
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    assertEquals(BinaryCodec.TAG_CARD_DETAILS, input.readByte());
+    assertEquals(requestId, input.readInt());
+    Map<String, Object> decoded = new LinkedHashMap<>();
+    decoded.put("nonce", readString(input));
+    decoded.put("card", readCard(input));
+    assertEquals(-1, input.read());
+    assertEquals(cardDetailsConverter.toMapObject(cardDetails), decoded);
+  }
+
+  private static Map<String, Object> readCard(DataInputStream input) throws IOException {
+    Map<String, Object> card = new LinkedHashMap<>();
+    card.put("brand", DART_BRANDS.get(input.readUnsignedByte()));
+    card.put("lastFourDigits", readString(input));
+    card.put("expirationMonth", input.readUnsignedByte());
+    card.put("expirationYear", input.readUnsignedShort());
+    card.put("postalCode", readString(input));
+    card.put("type", DART_CARD_TYPES.get(input.readUnsignedByte()));
+    card.put("prepaidType", DART_CARD_PREPAID_TYPES.get(input.readUnsignedByte()));
+    return card;
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = input.readUnsignedShort();
+    if (length == 0xFFFF) {
+      return null;
+    }
+    byte[] utf8 = new byte[length];
+    input.readFully(utf8);
+    return new String(utf8, Charset.forName("UTF-8"));
+  }
+}
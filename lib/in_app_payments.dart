@@ -14,10 +14,13 @@
  limitations under the License.
 */
 import 'dart:async';
+import 'dart:io' show Platform;
+import 'dart:typed_data';
 import 'package:flutter/services.dart';
 import 'package:built_value/standard_json_plugin.dart';
 import 'package:meta/meta.dart';
 import 'models.dart';
+import 'src/binary_codec.dart';
 import 'src/serializers.dart';
 
 typedef CardEntryCancelCallback = void Function();
@@ -36,6 +39,10 @@ typedef ApplePayNonceRequestFailureCallback = void Function(
     ErrorInfo errorInfo);
 typedef ApplePayCompleteCallback = void Function();
 
+enum PaymentEventType { cardDetails, googlePayNonce, error, cancel, complete }
+
+enum PaymentEventSource { cardEntry, googlePay }
+
 // ignore: avoid_classes_with_only_static_members
 class InAppPayments {
   static final MethodChannel _channel =
@@ -45,16 +52,33 @@ class InAppPayments {
   static final _standardSerializers =
       (serializers.toBuilder()..addPlugin(StandardJsonPlugin())).build();
 
+  static const EventChannel _paymentEventChannel =
+      EventChannel('square_in_app_payments/payment_events');
+  static Stream<PaymentEvent> _paymentEvents;
+  static const _paymentEventTypes = {
+    'cardDetails': PaymentEventType.cardDetails,
+    'googlePayNonce': PaymentEventType.googlePayNonce,
+    'error': PaymentEventType.error,
+    'cancel': PaymentEventType.cancel,
+    'complete': PaymentEventType.complete,
+  };
+  static const _paymentEventSources = {
+    'cardEntry': PaymentEventSource.cardEntry,
+    'googlePay': PaymentEventSource.googlePay,
+  };
+
   static CardEntryCancelCallback _cardEntryCancelCallback;
   static CardEntryCardNonceRequestSuccessCallback
       _cardEntryCardNonceRequestSuccessCallback;
   static CardEntryCompleteCallback _cardEntryCompleteCallback;
+  // Android card entry nonces waiting for completeCardEntry or
+  // showCardNonceProcessingError, oldest first.
+  static final List<int> _cardEntryRequestIds = [];
+  static const Symbol _cardEntryRequestIdZoneKey =
+      #squareInAppPaymentsCardEntryRequestId;
 
-  static GooglePayNonceRequestSuccessCallback
-      _googlePayNonceRequestSuccessCallback;
-  static GooglePayNonceRequestFailureCallback
-      _googlePayNonceRequestFailureCallback;
-  static GooglePayCancelCallback _googlePayCancelCallback;
+  static final Map<int, _GooglePayRequest> _googlePayRequests = {};
+  static int _lastGooglePayRequestId = 0;
 
   static ApplePayNonceRequestSuccessCallback
       _applePayNonceRequestSuccessCallback;
@@ -65,53 +89,67 @@ class InAppPayments {
   static Future<dynamic> _nativeCallHandler(MethodCall call) async {
     try {
       switch (call.method) {
+        case 'batchedEvents':
+          // Android coalesces events queued in the same main thread turn.
+          for (var event in call.arguments) {
+            await _nativeCallHandler(MethodCall(event[0], event[1]));
+          }
+          break;
         case 'cardEntryCancel':
+          _cardEntryRequestIds.clear();
           if (_cardEntryCancelCallback != null) {
             _cardEntryCancelCallback();
           }
           break;
         case 'cardEntryDidObtainCardDetails':
+          var requestId = call.arguments is Uint8List
+              ? decodeRequestId(call.arguments)
+              : call.arguments['requestId'];
+          _cardEntryRequestIds.add(requestId);
           if (_cardEntryCardNonceRequestSuccessCallback != null) {
-            var result = _standardSerializers.deserializeWith(
-                CardDetails.serializer, call.arguments);
-            _cardEntryCardNonceRequestSuccessCallback(result);
+            var result = _deserializeCardDetails(call.arguments);
+            var callback = _cardEntryCardNonceRequestSuccessCallback;
+            // completeCardEntry and showCardNonceProcessingError called from
+            // the callback, even after an await, answer this nonce.
+            runZoned(() => callback(result),
+                zoneValues: {_cardEntryRequestIdZoneKey: requestId});
           }
           break;
         case 'cardEntryComplete':
+          _cardEntryRequestIds.clear();
           if (_cardEntryCompleteCallback != null) {
             _cardEntryCompleteCallback();
           }
           break;
         case 'onGooglePayCanceled':
-          if (_googlePayCancelCallback != null) {
-            _googlePayCancelCallback();
+          var request = _takeGooglePayRequest(call.arguments);
+          if (request?.onCanceled != null) {
+            request.onCanceled();
           }
           break;
         case 'onGooglePayNonceRequestSuccess':
-          if (_googlePayNonceRequestSuccessCallback != null) {
-            var result = _standardSerializers.deserializeWith(
-                CardDetails.serializer, call.arguments);
-            _googlePayNonceRequestSuccessCallback(result);
+          var request = _takeGooglePayRequest(call.arguments);
+          if (request?.onSuccess != null) {
+            var result = _deserializeCardDetails(call.arguments);
+            request.onSuccess(result);
           }
           break;
         case 'onGooglePayNonceRequestFailure':
-          if (_googlePayNonceRequestFailureCallback != null) {
-            var errorInfo = _standardSerializers.deserializeWith(
-                ErrorInfo.serializer, call.arguments);
-            _googlePayNonceRequestFailureCallback(errorInfo);
+          var request = _takeGooglePayRequest(call.arguments);
+          if (request?.onFailure != null) {
+            var errorInfo = _deserializeErrorInfo(call.arguments);
+            request.onFailure(errorInfo);
           }
           break;
         case 'onApplePayNonceRequestSuccess':
           if (_applePayNonceRequestSuccessCallback != null) {
-            var result = _standardSerializers.deserializeWith(
-                CardDetails.serializer, call.arguments);
+            var result = _deserializeCardDetails(call.arguments);
             _applePayNonceRequestSuccessCallback(result);
           }
           break;
         case 'onApplePayNonceRequestFailure':
           if (_applePayNonceRequestFailureCallback != null) {
-            var errorInfo = _standardSerializers.deserializeWith(
-                ErrorInfo.serializer, call.arguments);
+            var errorInfo = _deserializeErrorInfo(call.arguments);
             _applePayNonceRequestFailureCallback(errorInfo);
           }
           break;
@@ -130,38 +168,288 @@ class InAppPayments {
     return false;
   }
 
-  static Future setSquareApplicationId(String applicationId) async {
+  static _GooglePayRequest _takeGooglePayRequest(dynamic arguments) {
+    var requestId = arguments is Uint8List
+        ? decodeRequestId(arguments)
+        : arguments == null ? null : arguments['requestId'];
+    return _googlePayRequests.remove(requestId);
+  }
+
+  static CardDetails _deserializeCardDetails(dynamic arguments) =>
+      arguments is Uint8List
+          ? decodeCardDetails(arguments)
+          : _standardSerializers.deserializeWith(
+              CardDetails.serializer, arguments);
+
+  // Google Pay failures with a request id wrap the error map in an envelope:
+  // {'requestId': ..., 'error': {...}}.
+  static ErrorInfo _deserializeErrorInfo(dynamic arguments) =>
+      arguments is Uint8List
+          ? decodeErrorInfo(arguments)
+          : _standardSerializers.deserializeWith(
+              ErrorInfo.serializer, arguments['error'] ?? arguments);
+
+  static PaymentEvent _deserializePaymentEvent(dynamic event) {
+    var type = _paymentEventTypes[event['type']];
+    var source = _paymentEventSources[event['source']];
+    var payload = event['payload'];
+    var requestId = payload is Uint8List
+        ? decodeRequestId(payload)
+        : payload == null ? null : payload['requestId'];
+    return PaymentEvent._(
+        type,
+        source,
+        requestId,
+        type == PaymentEventType.cardDetails ||
+                type == PaymentEventType.googlePayNonce
+            ? _deserializeCardDetails(payload)
+            : null,
+        type == PaymentEventType.error ? _deserializeErrorInfo(payload) : null);
+  }
+
+  // Android only. Every card entry and Google Pay outcome, whichever of the
+  // callback or future based methods started the flow. The stream is
+  // broadcast and shares one native subscription between listeners; events
+  // sent while nobody listens are buffered, keeping the 32 most recent, except
+  // nonces, which are only delivered to a current listener.
+  static Stream<PaymentEvent> get paymentEvents {
+    if (!Platform.isAndroid) {
+      return Stream<PaymentEvent>.empty();
+    }
+    return _paymentEvents ??= _paymentEventChannel
+        .receiveBroadcastStream()
+        .map(_deserializePaymentEvent);
+  }
+
+  // Android only. Journals every nonce handed to Dart until completeCardEntry,
+  // showCardNonceProcessingError or acknowledgeNonce, so recoverPendingNonces
+  // can return it after the app was killed before the nonce was charged.
+  static Future setNonceJournalEnabled(bool enabled) async {
+    assert(enabled != null, 'enabled should not be null.');
+    if (!Platform.isAndroid) {
+      return;
+    }
+    var params = <String, dynamic>{
+      'enabled': enabled,
+    };
+    await _channel.invokeMethod('setNonceJournalEnabled', params);
+  }
+
+  // Android only. Returns the journaled nonces that were never acknowledged
+  // and are less than 24 hours old, oldest first.
+  static Future<List<PendingNonce>> recoverPendingNonces() async {
+    if (!Platform.isAndroid) {
+      return <PendingNonce>[];
+    }
+    List<dynamic> records = await _channel.invokeMethod('recoverPendingNonces');
+    return records
+        .map((record) => PendingNonce._(
+            record['source'] == 2
+                ? PaymentEventSource.googlePay
+                : PaymentEventSource.cardEntry,
+            DateTime.fromMillisecondsSinceEpoch(record['obtainedAt']),
+            decodeCardDetails(record['cardDetails'])))
+        .toList();
+  }
+
+  // Android only. Removes a nonce from the journal once it has been charged.
+  static Future acknowledgeNonce(String nonce) async {
+    assert(nonce != null, 'nonce should not be null.');
+    if (!Platform.isAndroid) {
+      return;
+    }
+    var params = <String, dynamic>{
+      'nonce': nonce,
+    };
+    await _channel.invokeMethod('acknowledgeNonce', params);
+  }
+
+  // Android only. Returns summaries of the most recently tokenized cards, least
+  // recently used first: no nonce, card number or postal code. Cards unused
+  // for 30 days are dropped and at most 10 are kept.
+  static Future<List<RecentCard>> getRecentCards() async {
+    if (!Platform.isAndroid) {
+      return <RecentCard>[];
+    }
+    Uint8List payload = await _channel.invokeMethod('getRecentCards');
+    return decodeRecentCards(
+        payload, (lastUsedAt, card) => RecentCard._(card, lastUsedAt));
+  }
+
+  // Android only. Saves the recent cards to the app's files directory so they
+  // survive a restart. Disabling deletes the saved file.
+  static Future setRecentCardPersistenceEnabled(bool enabled) async {
+    assert(enabled != null, 'enabled should not be null.');
+    if (!Platform.isAndroid) {
+      return;
+    }
+    var params = <String, dynamic>{
+      'enabled': enabled,
+    };
+    await _channel.invokeMethod('setRecentCardPersistenceEnabled', params);
+  }
+
+  // Android only. Forgets every recent card, including the saved ones.
+  static Future clearRecentCards() async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod('clearRecentCards');
+  }
+
+  // prewarm is Android only: it loads the card entry classes and theme on a
+  // low priority background thread instead of in the first startCardEntryFlow.
+  static Future setSquareApplicationId(String applicationId,
+      {bool prewarm = false}) async {
     assert(applicationId != null && applicationId.isNotEmpty,
         'application should not be null or empty.');
     var params = <String, dynamic>{
       'applicationId': applicationId,
+      'prewarm': prewarm,
     };
     await _channel.invokeMethod('setApplicationId', params);
   }
 
+  static Future setBinaryCodecEnabled(bool enabled) async {
+    assert(enabled != null, 'enabled should not be null.');
+    if (!Platform.isAndroid) {
+      return;
+    }
+    var params = <String, dynamic>{
+      'enabled': enabled,
+    };
+    await _channel.invokeMethod('setBinaryCodecEnabled', params);
+  }
+
+  // Android only. Returns latency statistics (count, meanMs, p50Ms, p99Ms,
+  // maxMs) keyed by phase name, e.g. 'dispatch.startCardEntryFlow'.
+  static Future<Map<String, dynamic>> getPerformanceMetrics(
+      {bool reset = false}) async {
+    if (!Platform.isAndroid) {
+      return <String, dynamic>{};
+    }
+    var params = <String, dynamic>{
+      'reset': reset,
+    };
+    Map<dynamic, dynamic> metrics =
+        await _channel.invokeMethod('getPerformanceMetrics', params);
+    return Map<String, dynamic>.from(metrics);
+  }
+
   static Future startCardEntryFlow(
       {CardEntryCardNonceRequestSuccessCallback onCardNonceRequestSuccess,
       CardEntryCancelCallback onCardEntryCancel,
-      bool collectPostalCode = true}) async {
+      bool collectPostalCode = true,
+      Duration cardNonceResponseTimeout,
+      bool useLifecycleCloseDetection = false}) async {
+    var previousCancelCallback = _cardEntryCancelCallback;
+    var previousSuccessCallback = _cardEntryCardNonceRequestSuccessCallback;
     _cardEntryCancelCallback = onCardEntryCancel;
     _cardEntryCardNonceRequestSuccessCallback = onCardNonceRequestSuccess;
     var params = <String, dynamic>{
       'collectPostalCode': collectPostalCode,
+      'cardNonceResponseTimeoutMs': cardNonceResponseTimeout?.inMilliseconds,
+      'useLifecycleCloseDetection': useLifecycleCloseDetection,
     };
-    await _channel.invokeMethod('startCardEntryFlow', params);
+    try {
+      await _channel.invokeMethod('startCardEntryFlow', params);
+    } on PlatformException catch (ex) {
+      // A rejected start, e.g. while card entry is already in progress,
+      // must not take over the active flow's callbacks.
+      _cardEntryCancelCallback = previousCancelCallback;
+      _cardEntryCardNonceRequestSuccessCallback = previousSuccessCallback;
+      throw InAppPaymentsException(
+          ex.code,
+          ex.message,
+          ex.details[InAppPaymentsException.debugCodeKey],
+          ex.details[InAppPaymentsException.debugMessageKey]);
+    }
+  }
+
+  // Android only. Resolves with the first card nonce, or null if card entry is
+  // canceled. Nonces obtained after showCardNonceProcessingError are delivered
+  // to onCardNonceRequestSuccess.
+  static Future<CardDetails> startCardEntryFlowForResult(
+      {CardEntryCardNonceRequestSuccessCallback onCardNonceRequestSuccess,
+      CardEntryCancelCallback onCardEntryCancel,
+      bool collectPostalCode = true,
+      Duration cardNonceResponseTimeout,
+      bool useLifecycleCloseDetection = false}) async {
+    var previousCancelCallback = _cardEntryCancelCallback;
+    var previousSuccessCallback = _cardEntryCardNonceRequestSuccessCallback;
+    _cardEntryCancelCallback = onCardEntryCancel;
+    _cardEntryCardNonceRequestSuccessCallback = onCardNonceRequestSuccess;
+    var params = <String, dynamic>{
+      'collectPostalCode': collectPostalCode,
+      'cardNonceResponseTimeoutMs': cardNonceResponseTimeout?.inMilliseconds,
+      'useLifecycleCloseDetection': useLifecycleCloseDetection,
+      'awaitResult': true,
+    };
+    dynamic result;
+    try {
+      result = await _channel.invokeMethod('startCardEntryFlow', params);
+    } on PlatformException catch (ex) {
+      _cardEntryCancelCallback = previousCancelCallback;
+      _cardEntryCardNonceRequestSuccessCallback = previousSuccessCallback;
+      throw InAppPaymentsException(
+          ex.code,
+          ex.message,
+          ex.details[InAppPaymentsException.debugCodeKey],
+          ex.details[InAppPaymentsException.debugMessageKey]);
+    }
+    if (result == null) {
+      return null;
+    }
+    _cardEntryRequestIds.add(
+        result is Uint8List ? decodeRequestId(result) : result['requestId']);
+    return _deserializeCardDetails(result);
   }
 
+  // requestId is Android only and rarely needed: inside the
+  // onCardNonceRequestSuccess callback, or with a single nonce outstanding,
+  // the nonce being answered is known. Use PaymentEvent.requestId otherwise.
   static Future completeCardEntry(
-      {CardEntryCompleteCallback onCardEntryComplete}) async {
+      {CardEntryCompleteCallback onCardEntryComplete, int requestId}) async {
     _cardEntryCompleteCallback = onCardEntryComplete;
-    await _channel.invokeMethod('completeCardEntry');
+    var params = <String, dynamic>{
+      'requestId': _takeCardEntryRequestId(requestId),
+    };
+    await _invokeCardEntryReply('completeCardEntry', params);
   }
 
-  static Future showCardNonceProcessingError(String errorMessage) async {
+  static Future showCardNonceProcessingError(String errorMessage,
+      {int requestId}) async {
     var params = <String, dynamic>{
+      'requestId': _takeCardEntryRequestId(requestId),
       'errorMessage': errorMessage,
     };
-    await _channel.invokeMethod('showCardNonceProcessingError', params);
+    await _invokeCardEntryReply('showCardNonceProcessingError', params);
+  }
+
+  // On Android, a reply to a nonce that timed out or was already answered
+  // throws with debug code fl_card_nonce_request_expired.
+  static Future _invokeCardEntryReply(
+      String method, Map<String, dynamic> params) async {
+    try {
+      await _channel.invokeMethod(method, params);
+    } on PlatformException catch (ex) {
+      throw InAppPaymentsException(
+          ex.code,
+          ex.message,
+          ex.details[InAppPaymentsException.debugCodeKey],
+          ex.details[InAppPaymentsException.debugMessageKey]);
+    }
+  }
+
+  static int _takeCardEntryRequestId(int requestId) {
+    requestId ??= Zone.current[_cardEntryRequestIdZoneKey];
+    // Outside a callback, guessing between several nonces could answer the
+    // wrong one, so Android rejects the call instead.
+    if (requestId == null && _cardEntryRequestIds.length == 1) {
+      requestId = _cardEntryRequestIds.first;
+    }
+    _cardEntryRequestIds.remove(requestId);
+    return requestId;
   }
 
   static Future initializeGooglePay(
@@ -188,6 +476,30 @@ class InAppPayments {
     }
   }
 
+  // Configures how a Google Pay token is exchanged for a nonce. Network errors
+  // are retried up to maxAttempts times in total with jittered exponential
+  // backoff. With hedgeRequests, a second request is sent once the first is
+  // slower than the observed p95 latency. After
+  // circuitBreakerFailureThreshold network errors in a row, requests fail
+  // fast for circuitBreakerOpenDuration. Omitted values keep their defaults.
+  static Future setGooglePayRetryPolicy(
+      {int maxAttempts,
+      Duration initialBackoff,
+      Duration maxBackoff,
+      bool hedgeRequests = false,
+      int circuitBreakerFailureThreshold,
+      Duration circuitBreakerOpenDuration}) async {
+    var params = <String, dynamic>{
+      'maxAttempts': maxAttempts,
+      'initialBackoffMs': initialBackoff?.inMilliseconds,
+      'maxBackoffMs': maxBackoff?.inMilliseconds,
+      'hedgeRequests': hedgeRequests,
+      'circuitBreakerFailureThreshold': circuitBreakerFailureThreshold,
+      'circuitBreakerOpenMs': circuitBreakerOpenDuration?.inMilliseconds,
+    };
+    await _channel.invokeMethod('setGooglePayRetryPolicy', params);
+  }
+
   static Future requestGooglePayNonce(
       {@required String price,
       @required String currencyCode,
@@ -200,17 +512,50 @@ class InAppPayments {
     assert(currencyCode != null && currencyCode.isNotEmpty,
         'currencyCode should not be null or empty.');
     assert(priceStatus != null, 'priceStatus should not be null.');
-    _googlePayNonceRequestSuccessCallback = onGooglePayNonceRequestSuccess;
-    _googlePayNonceRequestFailureCallback = onGooglePayNonceRequestFailure;
-    _googlePayCancelCallback = onGooglePayCanceled;
+    var requestId = ++_lastGooglePayRequestId;
+    _googlePayRequests[requestId] = _GooglePayRequest(
+        onGooglePayNonceRequestSuccess,
+        onGooglePayNonceRequestFailure,
+        onGooglePayCanceled);
 
     try {
       var params = <String, dynamic>{
         'price': price,
         'currencyCode': currencyCode,
         'priceStatus': priceStatus,
+        'requestId': requestId,
       };
       await _channel.invokeMethod('requestGooglePayNonce', params);
+    } on PlatformException catch (ex) {
+      _googlePayRequests.remove(requestId);
+      throw InAppPaymentsException(
+          ex.code,
+          ex.message,
+          ex.details[InAppPaymentsException.debugCodeKey],
+          ex.details[InAppPaymentsException.debugMessageKey]);
+    }
+  }
+
+  // Resolves with the Google Pay nonce, or null if the Google Pay sheet is
+  // canceled. Failures are thrown as InAppPaymentsException.
+  static Future<CardDetails> requestGooglePayNonceForResult(
+      {@required String price,
+      @required String currencyCode,
+      @required int priceStatus}) async {
+    assert(price != null && price.isNotEmpty,
+        'price should not be null or empty.');
+    assert(currencyCode != null && currencyCode.isNotEmpty,
+        'currencyCode should not be null or empty.');
+    assert(priceStatus != null, 'priceStatus should not be null.');
+    try {
+      var params = <String, dynamic>{
+        'price': price,
+        'currencyCode': currencyCode,
+        'priceStatus': priceStatus,
+        'awaitResult': true,
+      };
+      var result = await _channel.invokeMethod('requestGooglePayNonce', params);
+      return result == null ? null : _deserializeCardDetails(result);
     } on PlatformException catch (ex) {
       throw InAppPaymentsException(
           ex.code,
@@ -287,6 +632,55 @@ class InAppPayments {
   }
 }
 
+class PaymentEvent {
+  final PaymentEventType type;
+  final PaymentEventSource source;
+
+  // The card entry or Google Pay request the event belongs to, when known.
+  final int requestId;
+
+  // Set for cardDetails and googlePayNonce events.
+  final CardDetails cardDetails;
+
+  // Set for error events.
+  final ErrorInfo errorInfo;
+
+  PaymentEvent._(
+      this.type, this.source, this.requestId, this.cardDetails, this.errorInfo);
+
+  @override
+  String toString() => 'PaymentEvent($type, $source, $requestId)';
+}
+
+class PendingNonce {
+  final PaymentEventSource source;
+  final DateTime obtainedAt;
+  final CardDetails cardDetails;
+
+  PendingNonce._(this.source, this.obtainedAt, this.cardDetails);
+
+  @override
+  String toString() => 'PendingNonce($source, $obtainedAt)';
+}
+
+class RecentCard {
+  final Card card;
+  final DateTime lastUsedAt;
+
+  RecentCard._(this.card, this.lastUsedAt);
+
+  @override
+  String toString() => 'RecentCard($card, $lastUsedAt)';
+}
+
+class _GooglePayRequest {
+  final GooglePayNonceRequestSuccessCallback onSuccess;
+  final GooglePayNonceRequestFailureCallback onFailure;
+  final GooglePayCancelCallback onCanceled;
+
+  _GooglePayRequest(this.onSuccess, this.onFailure, this.onCanceled);
+}
+
 class InAppPaymentsException implements Exception {
   static const String debugCodeKey = 'debugCode';
   static const String debugMessageKey = 'debugMessage';
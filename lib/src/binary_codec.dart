@@ -0,0 +1,171 @@
+/*
+Copyright 2018 Square Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+import 'dart:convert';
+import 'dart:typed_data';
+import '../models.dart';
+import 'serializers.dart';
+
+// Decodes the compact payloads written by the Android BinaryCodec. Field order and
+// enum wire ordinals must stay in sync with CardConverter and CardDetailsConverter.
+const int _tagCardDetails = 1;
+const int _tagErrorInfo = 2;
+const int _tagRecentCards = 3;
+const int _nullStringLength = 0xFFFF;
+
+const List<Brand> _brands = [
+  Brand.otherBrand,
+  Brand.visa,
+  Brand.mastercard,
+  Brand.americanExpress,
+  Brand.discover,
+  Brand.discoverDiners,
+  Brand.jcb,
+  Brand.chinaUnionPay,
+];
+const List<CardType> _cardTypes = [
+  CardType.debit,
+  CardType.credit,
+  CardType.unknown,
+];
+const List<CardPrepaidType> _cardPrepaidTypes = [
+  CardPrepaidType.prepaid,
+  CardPrepaidType.notPrepaid,
+  CardPrepaidType.unknown,
+];
+
+int decodeRequestId(Uint8List bytes) {
+  var reader = _BinaryReader(bytes);
+  reader.readUint8();
+  var requestId = reader.readInt32();
+  return requestId == 0 ? null : requestId;
+}
+
+CardDetails decodeCardDetails(Uint8List bytes) {
+  var reader = _BinaryReader(bytes);
+  reader.expectTag(_tagCardDetails);
+  reader.readInt32();
+  var nonce = reader.readString();
+  var card = _readCard(reader);
+  return CardDetails((b) => b
+    ..nonce = nonce
+    ..card.replace(card));
+}
+
+// Recent cards have no request id, see BinaryCodec.encodeRecentCards.
+List<T> decodeRecentCards<T>(
+    Uint8List bytes, T create(DateTime lastUsedAt, Card card)) {
+  var reader = _BinaryReader(bytes);
+  reader.expectTag(_tagRecentCards);
+  var count = reader.readUint8();
+  var recentCards = <T>[];
+  for (var i = 0; i < count; i++) {
+    var lastUsedAt = DateTime.fromMillisecondsSinceEpoch(reader.readInt64());
+    reader.readUint16();
+    recentCards.add(create(lastUsedAt, _readCard(reader)));
+  }
+  return recentCards;
+}
+
+ErrorInfo decodeErrorInfo(Uint8List bytes) {
+  var reader = _BinaryReader(bytes);
+  reader.expectTag(_tagErrorInfo);
+  reader.readInt32();
+  var code = _decodeErrorCode(reader.readString());
+  var message = reader.readString();
+  var debugCode = reader.readString();
+  var debugMessage = reader.readString();
+  return ErrorInfo((b) => b
+    ..code = code
+    ..message = message
+    ..debugCode = debugCode
+    ..debugMessage = debugMessage);
+}
+
+Card _readCard(_BinaryReader reader) {
+  var brand = _brands[reader.readUint8()];
+  var lastFourDigits = reader.readString();
+  var expirationMonth = reader.readUint8();
+  var expirationYear = reader.readUint16();
+  var postalCode = reader.readString();
+  var type = _cardTypes[reader.readUint8()];
+  var prepaidType = _cardPrepaidTypes[reader.readUint8()];
+  return Card((b) => b
+    ..brand = brand
+    ..lastFourDigits = lastFourDigits
+    ..expirationMonth = expirationMonth
+    ..expirationYear = expirationYear
+    ..postalCode = postalCode
+    ..type = type
+    ..prepaidType = prepaidType);
+}
+
+// Uses the same wire names as the map format, so both formats decode every
+// ErrorCode. A code this version doesn't know yet is reported as a usage
+// error rather than null; debugCode still identifies it.
+ErrorCode _decodeErrorCode(String wireName) {
+  try {
+    return serializers.deserializeWith(ErrorCode.serializer, wireName);
+  } on ArgumentError {
+    return ErrorCode.usageError;
+  }
+}
+
+class _BinaryReader {
+  final Uint8List _bytes;
+  final ByteData _data;
+  int _offset = 0;
+
+  _BinaryReader(this._bytes)
+      : _data = ByteData.view(
+            _bytes.buffer, _bytes.offsetInBytes, _bytes.lengthInBytes);
+
+  void expectTag(int tag) {
+    var actual = readUint8();
+    if (actual != tag) {
+      throw FormatException('unexpected payload tag $actual, expected $tag');
+    }
+  }
+
+  int readUint8() => _data.getUint8(_offset++);
+
+  int readUint16() {
+    var value = _data.getUint16(_offset);
+    _offset += 2;
+    return value;
+  }
+
+  int readInt32() {
+    var value = _data.getInt32(_offset);
+    _offset += 4;
+    return value;
+  }
+
+  int readInt64() {
+    var value = _data.getInt64(_offset);
+    _offset += 8;
+    return value;
+  }
+
+  String readString() {
+    var length = readUint16();
+    if (length == _nullStringLength) {
+      return null;
+    }
+    var value = utf8.decoder.convert(_bytes, _offset, _offset + length);
+    _offset += length;
+    return value;
+  }
+}